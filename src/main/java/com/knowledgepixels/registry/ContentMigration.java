@@ -0,0 +1,71 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.unset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * Background migration to the Jelly-only storage mode (REGISTRY_STORE_TRIG=false), which removes the TriG
+ * content from the nanopubs that were stored with it. It walks through the collection in the order of the
+ * artifact codes, in small batches with pauses in between, so it doesn't compete too much with the loading.
+ */
+public class ContentMigration {
+
+	private ContentMigration() {}  // no instances allowed
+
+	private static final int BATCH_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_CONTENT_MIGRATION_BATCH_SIZE", "1000"));
+	private static final long PAUSE = Long.parseLong(Utils.getEnv("REGISTRY_CONTENT_MIGRATION_PAUSE", "100"));
+
+	/**
+	 * Starts the migration thread, unless the registry runs in the mode where TriG content is stored.
+	 */
+	public static void start() {
+		if (RegistryDB.STORE_TRIG) return;
+		Thread t = new Thread(ContentMigration::run, "content-migration");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void run() {
+		String lastId = null;
+		long count = 0;
+		System.err.println("Removing TriG content from stored nanopubs");
+		while (true) {
+			try {
+				Bson filter = exists("content");
+				if (lastId != null) filter = and(gt("_id", lastId), filter);
+				List<String> ids = new ArrayList<>();
+				for (Document d : collection("nanopubs").find(filter).sort(ascending("_id")).projection(include("_id")).limit(BATCH_SIZE)) {
+					ids.add(d.getString("_id"));
+				}
+				if (ids.isEmpty()) break;
+				collection("nanopubs").updateMany(in("_id", ids), unset("content"));
+				count += ids.size();
+				lastId = ids.get(ids.size() - 1);
+				Thread.sleep(PAUSE);
+			} catch (InterruptedException ex) {
+				return;
+			} catch (Exception ex) {
+				System.err.println("Content migration failed; retrying: " + ex.getMessage());
+				try {
+					Thread.sleep(60 * 1000);
+				} catch (InterruptedException iex) {
+					return;
+				}
+			}
+		}
+		System.err.println("Removed TriG content from " + count + " nanopubs");
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getMaxValue;
+
+import java.util.TreeSet;
+
+import org.bson.Document;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Hands out the values of the nanopubs.counter sequence. Blocks of BLOCK_SIZE values are reserved by raising
+ * a high-water mark that is persisted in the sequences collection, so concurrent loaders never get the same
+ * counter, and no max-value query is needed per insert.
+ *
+ * Counters are handed out before the insert, so with concurrent loaders a nanopub can be stored after one with
+ * a higher counter. Counters stay pending until {@link #release(long)} is called, and readers that page through
+ * the nanopubs by counter only read up to {@link #getCommittedWatermark()}, below which no nanopub can show up
+ * anymore. This assumes that no other process inserts nanopubs into the same DB, and that the inserts are not
+ * part of transactions, as a counter is released before a transaction around its insert would be committed.
+ *
+ * Values that were reserved but not used (e.g. the rest of the block on restart, or when an insert fails) leave
+ * gaps in the sequence, so the counter is not a count of the nanopubs.
+ */
+public class CounterAllocator {
+
+	private CounterAllocator() {}  // no instances allowed
+
+	private static final String SEQUENCE_ID = "nanopubs.counter";
+	private static final long BLOCK_SIZE = Long.parseLong(Utils.getEnv("REGISTRY_COUNTER_BLOCK_SIZE", "1000"));
+
+	// The last value handed out:
+	private static long counter = 0;
+	// The last value of the currently reserved block:
+	private static long reservedUntil = 0;
+	private static boolean initialized = false;
+	// Values handed out whose inserts are not done yet:
+	private static final TreeSet<Long> pending = new TreeSet<>();
+
+	/**
+	 * Returns the next counter value. {@link #release(long)} has to be called with it once the insert is done,
+	 * whether it succeeded or not.
+	 */
+	public static synchronized long next() {
+		if (counter >= reservedUntil) reserveBlock();
+		counter++;
+		pending.add(counter);
+		return counter;
+	}
+
+	/**
+	 * To be called when the insert with the given counter is committed or has failed.
+	 */
+	public static synchronized void release(long c) {
+		pending.remove(c);
+	}
+
+	/**
+	 * Returns the highest counter up to which all nanopubs are stored. Nanopubs with a counter up to this value
+	 * that are not stored now will never be.
+	 */
+	public static synchronized long getCommittedWatermark() {
+		if (!initialized) reserveBlock();
+		if (pending.isEmpty()) return counter;
+		return pending.first() - 1;
+	}
+
+	private static void reserveBlock() {
+		long from = counter;
+		Document find = new Document("_id", SEQUENCE_ID);
+		if (!initialized) {
+			// Existing databases don't have the sequence yet, so it's started after the highest counter in use:
+			try (ClientSession mongoSession = RegistryDB.getClient().startSession()) {
+				Long maxCounter = (Long) getMaxValue(mongoSession, "nanopubs", "counter");
+				if (maxCounter != null && maxCounter > from) from = maxCounter;
+			}
+			initialized = true;
+		}
+		// Not part of any transaction, so the reservation persists even if the inserting transaction is aborted:
+		collection("sequences").updateOne(find,
+				new Document("$max", new Document("value", from)),
+				new UpdateOptions().upsert(true)
+			);
+		Document d = collection("sequences").findOneAndUpdate(find,
+				new Document("$inc", new Document("value", BLOCK_SIZE)),
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+			);
+		long until = d.getLong("value");
+		counter = until - BLOCK_SIZE;
+		reservedUntil = until;
+	}
+
+}
@@ -15,16 +15,15 @@ import io.vertx.ext.web.RoutingContext;
 public class DebugPage extends Page {
 
 	public static void show(RoutingContext context) {
-		DebugPage page;
-		try (ClientSession s = RegistryDB.getClient().startSession()) {
-			s.startTransaction();
+		DebugPage page = null;
+		try (ClientSession s = RegistryDB.startReadSession()) {
 			page = new DebugPage(s, context);
 			page.show();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			if (page != null) page.finish();
 			context.response().end();
-			// TODO Clean-up here?
 		}
 	}
 
@@ -0,0 +1,86 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Projections.include;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * In-memory Bloom filter of the artifact codes in the nanopubs collection, so lookups of nanopubs that are not
+ * there yet don't need to go to the DB. It is filled at startup by streaming the IDs of the collection, and
+ * artifact codes are added before their nanopubs are inserted. Until the filter is filled, everything counts as
+ * possibly known.
+ *
+ * This assumes that no other process inserts nanopubs into the same DB.
+ */
+public class KnownNanopubs {
+
+	private KnownNanopubs() {}  // no instances allowed
+
+	private static final long MIN_SIZE = Long.parseLong(Utils.getEnv("REGISTRY_NANOPUB_FILTER_SIZE", "10000000"));
+	private static final double FALSE_POSITIVE_RATE = Double.parseDouble(Utils.getEnv("REGISTRY_NANOPUB_FILTER_FPP", "0.01"));
+
+	private static volatile BloomFilter<CharSequence> filter;
+	private static volatile boolean ready = false;
+
+	/**
+	 * Creates the filter and starts filling it in the background.
+	 */
+	public static void start() {
+		// Leaving room for the collection to double before the false positive rate goes up:
+		long size = Math.max(MIN_SIZE, 2 * collection("nanopubs").estimatedDocumentCount());
+		filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), size, FALSE_POSITIVE_RATE);
+		Thread t = new Thread(KnownNanopubs::fill, "nanopub-filter");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void fill() {
+		long count = 0;
+		try (var c = collection("nanopubs").find().projection(include("_id")).batchSize(10000).cursor()) {
+			while (c.hasNext()) {
+				filter.put(c.next().getString("_id"));
+				count++;
+			}
+		} catch (Exception ex) {
+			// The filter then stays unused, and all lookups go to the DB:
+			System.err.println("Filling nanopub filter failed: " + ex.getMessage());
+			return;
+		}
+		ready = true;
+		System.err.println("Nanopub filter filled with " + count + " artifact codes");
+	}
+
+	/**
+	 * To be called before a nanopub with the given artifact code is inserted.
+	 */
+	public static void add(String ac) {
+		BloomFilter<CharSequence> f = filter;
+		if (f != null) f.put(ac);
+	}
+
+	/**
+	 * Returns false if the nanopub with the given artifact code is definitely not in the nanopubs collection.
+	 */
+	public static boolean mightContain(String ac) {
+		return !ready || filter.mightContain(ac);
+	}
+
+	/**
+	 * Returns the given artifact codes without the ones that are definitely not in the nanopubs collection.
+	 */
+	public static List<String> possiblyKnown(Collection<String> acs) {
+		List<String> l = new ArrayList<>();
+		for (String ac : acs) {
+			if (mightContain(ac)) l.add(ac);
+		}
+		return l;
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.knowledgepixels.registry;
 
 import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.readCollection;
 import static com.knowledgepixels.registry.RegistryDB.unhash;
 import static com.knowledgepixels.registry.Utils.*;
 import static com.mongodb.client.model.Aggregates.lookup;
@@ -8,7 +9,11 @@ import static com.mongodb.client.model.Aggregates.match;
 import static com.mongodb.client.model.Aggregates.project;
 import static com.mongodb.client.model.Aggregates.sort;
 import static com.mongodb.client.model.Aggregates.unwind;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
 import static com.mongodb.client.model.Indexes.ascending;
 import static com.mongodb.client.model.Indexes.descending;
 import static com.mongodb.client.model.Projections.exclude;
@@ -20,6 +25,8 @@ import java.util.List;
 
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
 import org.nanopub.jelly.NanopubStream;
 
 import com.google.gson.Gson;
@@ -32,17 +39,18 @@ public class ListPage extends Page {
 
 	private static final Gson gson = new Gson();
 
+	private static final JsonWriterSettings RELAXED_JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
 	public static void show(RoutingContext context) {
-		ListPage page;
-		try (ClientSession s = RegistryDB.getClient().startSession()) {
-			s.startTransaction();
+		ListPage page = null;
+		try (ClientSession s = RegistryDB.startReadSession()) {
 			page = new ListPage(s, context);
 			page.show();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			if (page != null) page.finish();
 			context.response().end();
-			// TODO Clean-up here?
 		}
 	}
 
@@ -86,27 +94,62 @@ public class ListPage extends Page {
 						unwind("$jelly")
 				);
 				// TODO: try with resource should be used for all DB access, really, like here
-				try (var result = collection("listEntries").aggregate(mongoSession, pipeline).cursor()) {
-					NanopubStream npStream = NanopubStream.fromMongoCursor(result);
-					BufferOutputStream outputStream = new BufferOutputStream();
-					npStream.writeToByteStream(outputStream);
-					context.response().write(outputStream.getBuffer());
+				try (var result = readCollection("listEntries").aggregate(mongoSession, pipeline).cursor();
+						ResponseOutputStream outputStream = new ResponseOutputStream(context.response())) {
+					// Frames are written to the response as the cursor is consumed:
+					NanopubStream.fromMongoCursor(result).writeToByteStream(outputStream);
 				}
 			} else {
-				MongoCursor<Document> c = collection("listEntries")
-						.find(mongoSession, new Document("pubkey", pubkey).append("type", type))
+				// Optionally return only a page of the given size, starting at position X:
+				long from;
+				int limit;
+				try {
+					from = Long.parseLong(getParam("from", "0"));
+					if (from < 0) throw new NumberFormatException();
+				} catch (NumberFormatException ex) {
+					context.response().setStatusCode(400).setStatusMessage(
+							"Invalid from parameter."
+					);
+					return;
+				}
+				try {
+					limit = Integer.parseInt(getParam("limit", "0"));
+					if (limit < 0) throw new NumberFormatException();
+				} catch (NumberFormatException ex) {
+					context.response().setStatusCode(400).setStatusMessage(
+							"Invalid limit parameter."
+					);
+					return;
+				}
+				Bson filter = and(eq("pubkey", pubkey), eq("type", type), gte("position", from));
+				String nextPageUrl = null;
+				if (limit > 0) {
+					// Find the first position of the next page (covered by the list position index), so the header
+					// can be set before the body is written:
+					Document next = readCollection("listEntries")
+							.find(mongoSession, filter)
+							.sort(ascending("position"))
+							.skip(limit)
+							.projection(new Document("position", 1).append("_id", 0))
+							.first();
+					if (next != null) {
+						nextPageUrl = context.request().path() + "?from=" + next.getLong("position") + "&limit=" + limit;
+						addLink(nextPageUrl, "next");
+					}
+				}
+				MongoCursor<Document> c = readCollection("listEntries")
+						.find(mongoSession, filter)
 						.projection(exclude("_id"))
 						.sort(ascending("position"))
+						.limit(limit)
 						.cursor();
 
 				if (TYPE_JSON.equals(format)) {
 					println("[");
 					while (c.hasNext()) {
 						Document d = c.next();
-						// Transforming long to int, so the JSON output looks nice:
-						// TODO Make this scale beyond the int range
-						d.replace("position", d.getLong("position").intValue());
-						print(d.toJson());
+						// Relaxed mode writes the long position as plain JSON number:
+						print(d.toJson(RELAXED_JSON));
 						println(c.hasNext() ? "," : "");
 					}
 					println("]");
@@ -124,12 +167,17 @@ public class ListPage extends Page {
 					println("<h3>Type Hash</h3>");
 					println("<p><code>" + type + "</code></p>");
 					println("<h3>Entries</h3>");
-					println("<ol>");
+					println("<p>Paged with <code>?from=X&amp;limit=N</code>; the next page is given in the <code>Link</code> " +
+							"response header with <code>rel=\"next\"</code>.</p>");
+					println("<ol start=\"" + (from + 1) + "\">");
 					while (c.hasNext()) {
 						Document d = c.next();
 						println("<li><a href=\"/np/" + d.getString("np") + "\"><code>" + getLabel(d.getString("np")) + "</code></a></li>");
 					}
 					println("</ol>");
+					if (nextPageUrl != null) {
+						println("<p><a href=\"" + nextPageUrl.replace("&", "&amp;") + "\">Next page &gt;</a></p>");
+					}
 					printHtmlFooter();
 				}
 			}
@@ -321,8 +369,9 @@ public class ListPage extends Page {
 			}
 		} else if (req.equals("/nanopubs")) {
 			if (TYPE_JELLY.equals(format)) {
-				// Return all nanopubs from after counter X (-1 by default)
+				// Return all nanopubs from after counter X (-1 by default), optionally limited to a page of the given size
 				long afterCounter;
+				int limit;
 				try {
 					afterCounter = Long.parseLong(getParam("afterCounter", "-1"));
 				} catch (NumberFormatException ex) {
@@ -331,20 +380,44 @@ public class ListPage extends Page {
 					);
 					return;
 				}
-				// TODO: something is aborting the Mongo transaction here after a while,
-				//  find out what exactly.
-				var pipeline = collection("nanopubs")
-						.find(mongoSession)
-						.filter(gt("counter", afterCounter))
+				try {
+					limit = Integer.parseInt(getParam("limit", "0"));
+					if (limit < 0) throw new NumberFormatException();
+				} catch (NumberFormatException ex) {
+					context.response().setStatusCode(400).setStatusMessage(
+							"Invalid limit parameter."
+					);
+					return;
+				}
+				// Nanopubs with lower counters might still be stored after the watermark, so clients that resume
+				// after the last counter they got don't miss them:
+				Bson filter = and(gt("counter", afterCounter), lte("counter", CounterAllocator.getCommittedWatermark()));
+				if (limit > 0) {
+					// Find the last counter of this page first (covered by the counter index), so the header can be
+					// set before the body is written:
+					Document last = readCollection("nanopubs")
+							.find(filter)
+							.sort(ascending("counter"))
+							.skip(limit - 1)
+							.projection(new Document("counter", 1).append("_id", 0))
+							.first();
+					if (last != null) {
+						long lastCounter = last.getLong("counter");
+						context.response().putHeader("Nanopub-Registry-Next-Counter", String.valueOf(lastCounter));
+						filter = and(filter, lte("counter", lastCounter));
+					}
+				}
+				// Not bound to the request session: each page is served from its own short-lived cursor, so clients
+				// can resume with afterCounter=[Nanopub-Registry-Next-Counter] after a failure.
+				var pipeline = readCollection("nanopubs")
+						.find(filter)
 						.sort(ascending("counter"))
 						// Only include the needed fields to save bandwidth to the DB
 						.projection(include("jelly", "counter"));
 
-				try (var result = pipeline.cursor()) {
-					NanopubStream npStream = NanopubStream.fromMongoCursorWithCounter(result);
-					BufferOutputStream outputStream = new BufferOutputStream();
-					npStream.writeToByteStream(outputStream);
-					context.response().write(outputStream.getBuffer());
+				try (var result = pipeline.cursor();
+						ResponseOutputStream outputStream = new ResponseOutputStream(context.response())) {
+					NanopubStream.fromMongoCursorWithCounter(result).writeToByteStream(outputStream);
 				}
 			} else {
 				// Return latest nanopubs
@@ -368,6 +441,8 @@ public class ListPage extends Page {
 					println("</p>");
 					println("<h3>All Nanopubs (Jelly)</h3>");
 					println("<p><a href=\"nanopubs.jelly\">.jelly</a></p>");
+					println("<p>Paged with <code>?afterCounter=X&amp;limit=N</code>; the next page starts after the counter in the " +
+							"<code>Nanopub-Registry-Next-Counter</code> response header.</p>");
 					println("<h3>Latest Nanopubs List (max. 1000)</h3>");
 					println("<ol>");
 					while (c.hasNext()) {
@@ -0,0 +1,100 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.getMaxValueDocument;
+
+import org.bson.Document;
+import org.nanopub.NanopubUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.client.ClientSession;
+
+/**
+ * Cache of the end of each list (position and checksum of the last entry) and of whether its document in the
+ * lists collection exists, so entries can be appended without looking these up in the DB first.
+ *
+ * Sessions with an active transaction bypass the cache, as their writes might still be aborted: they read the
+ * tails from the DB, and their writes drop the cached tails. Tails that are behind the DB anyway (e.g. because
+ * another process writes to the same DB) make the insert fail on the unique indexes; such tails are then
+ * reloaded.
+ */
+public class ListTailCache {
+
+	private ListTailCache() {}  // no instances allowed
+
+	private static final long MAX_SIZE = Long.parseLong(Utils.getEnv("REGISTRY_LIST_TAIL_CACHE_SIZE", "100000"));
+
+	private static final Cache<String,Tail> tails = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+
+	/**
+	 * The end of a list. Empty lists have position -1 and the initial checksum.
+	 */
+	public static class Tail {
+
+		private final long position;
+		private final String checksum;
+		private final boolean listKnown;
+
+		public Tail(long position, String checksum, boolean listKnown) {
+			this.position = position;
+			this.checksum = checksum;
+			this.listKnown = listKnown;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		/**
+		 * Whether the list is known to have its document in the lists collection.
+		 */
+		public boolean isListKnown() {
+			return listKnown;
+		}
+
+	}
+
+	private static String getKey(String pubkeyHash, String typeHash) {
+		return pubkeyHash + " " + typeHash;
+	}
+
+	/**
+	 * Returns the tail of the given list as seen by the given session, loading it from the DB if needed.
+	 */
+	public static Tail get(ClientSession mongoSession, String pubkeyHash, String typeHash) {
+		Tail tail = mongoSession.hasActiveTransaction() ? null : tails.getIfPresent(getKey(pubkeyHash, typeHash));
+		if (tail == null) {
+			Document doc = getMaxValueDocument(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash), "position");
+			if (doc == null) {
+				tail = new Tail(-1, NanopubUtils.INIT_CHECKSUM, false);
+			} else {
+				tail = new Tail(doc.getLong("position"), doc.getString("checksum"), false);
+			}
+			put(mongoSession, pubkeyHash, typeHash, tail);
+		}
+		return tail;
+	}
+
+	/**
+	 * To be called when the given tail was written to the DB with the given session.
+	 */
+	public static void put(ClientSession mongoSession, String pubkeyHash, String typeHash, Tail tail) {
+		if (mongoSession.hasActiveTransaction()) {
+			tails.invalidate(getKey(pubkeyHash, typeHash));
+		} else {
+			tails.put(getKey(pubkeyHash, typeHash), tail);
+		}
+	}
+
+	/**
+	 * Drops the cached tail of the given list, so it is reloaded from the DB the next time.
+	 */
+	public static void invalidate(ClientSession mongoSession, String pubkeyHash, String typeHash) {
+		tails.invalidate(getKey(pubkeyHash, typeHash));
+	}
+
+}
@@ -1,10 +1,5 @@
 package com.knowledgepixels.registry;
 
-import static com.knowledgepixels.registry.RegistryDB.collection;
-import static com.knowledgepixels.registry.RegistryDB.getMaxValue;
-import static com.knowledgepixels.registry.RegistryDB.getValue;
-import static com.knowledgepixels.registry.RegistryDB.isSet;
-
 import java.io.IOException;
 
 import com.mongodb.client.ClientSession;
@@ -14,16 +9,15 @@ import io.vertx.ext.web.RoutingContext;
 public class MainPage extends Page {
 
 	public static void show(RoutingContext context) {
-		MainPage page;
-		try (ClientSession s = RegistryDB.getClient().startSession()) {
-			s.startTransaction();
+		MainPage page = null;
+		try (ClientSession s = RegistryDB.startReadSession()) {
 			page = new MainPage(s, context);
 			page.show();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			if (page != null) page.finish();
 			context.response().end();
-			// TODO Clean-up here?
 		}
 	}
 
@@ -52,12 +46,13 @@ public class MainPage extends Page {
 		}
 
 		if ("application/json".equals(format)) {
-			println(RegistryInfo.getLocal(mongoSession).asJson());
+			println(RegistryInfo.getLocal().asJson());
 		} else {
-			String status = getValue(mongoSession, "serverInfo", "status").toString();
+			RegistryState state = RegistryState.get();
+			String status = state.getStatus();
 			printHtmlHeader("Nanopub Registry");
 			println("<h1>Nanopub Registry</h1>");
-			if (isSet(mongoSession, "serverInfo", "testInstance")) {
+			if (state.isTestInstance()) {
 				println("<p style=\"color: red\">This is a test instance.</p>");
 			}
 			println("<h3>Formats</h3>");
@@ -67,24 +62,24 @@ public class MainPage extends Page {
 			println("</p>");
 			println("<h3>Server</h3>");
 			println("<ul>");
-			println("<li><em>setupId:</em> " + getValue(mongoSession, "serverInfo", "setupId") + "</li>");
-			println("<li><em>coverageTypes:</em> " + getValue(mongoSession, "serverInfo", "coverageTypes") + "</li>");
-			println("<li><em>coverageAgents:</em> " + getValue(mongoSession, "serverInfo", "coverageAgents") + "</li>");
+			println("<li><em>setupId:</em> " + state.getSetupId() + "</li>");
+			println("<li><em>coverageTypes:</em> " + state.getCoverageTypes() + "</li>");
+			println("<li><em>coverageAgents:</em> " + state.getCoverageAgents() + "</li>");
 			println("<li><em>status:</em> " + status + "</li>");
-			println("<li><em>loadCounter:</em> " + getMaxValue(mongoSession, "nanopubs", "counter") + "</li>");
-			println("<li><em>trustStateCounter:</em> " + getValue(mongoSession, "serverInfo", "trustStateCounter") + "</li>");
-			Object lastTimeUpdate = getValue(mongoSession, "serverInfo", "lastTrustStateUpdate");
+			println("<li><em>loadCounter:</em> " + state.getLoadCounter() + "</li>");
+			println("<li><em>trustStateCounter:</em> " + state.getTrustStateCounter() + "</li>");
+			Object lastTimeUpdate = state.getLastTrustStateUpdate();
 			if (lastTimeUpdate != null) {
 				println("<li><em>lastTrustStateUpdate:</em> " + lastTimeUpdate.toString().replaceFirst("\\.[^.]*$", "") + "</li>");
 			} else {
 				println("<li><em>lastTrustStateUpdate:</em> null</li>");
 			}
-			Object trustStateHash = getValue(mongoSession, "serverInfo", "trustStateHash");
+			Object trustStateHash = state.getTrustStateHash();
 			if (trustStateHash != null) trustStateHash = trustStateHash.toString().substring(0, 10);
 			println("<li><em>trustStateHash:</em> " + trustStateHash + "</li>");
-			String oSetting = getValue(mongoSession, "setting", "original").toString();
+			String oSetting = state.getOriginalSetting();
 			println("<li><em>originalSetting:</em> <a href=\"/np/" + oSetting + "\"><code>" + oSetting.substring(0, 10) + "</code></a></li>");
-			String cSetting = getValue(mongoSession, "setting", "current").toString();
+			String cSetting = state.getCurrentSetting();
 			println("<li><em>currentSetting:</em> <a href=\"/np/" + cSetting + "\"><code>" + cSetting.substring(0, 10) + "</code></a></li>");
 			println("</ul>");
 
@@ -92,7 +87,7 @@ public class MainPage extends Page {
 			if (status.equals("launching") || status.equals("coreLoading")) {
 				println("<p><em>(loading...)</em></p>");
 			} else {
-				println("<p>Count: " + collection("agents").countDocuments(mongoSession) + "</p>");
+				println("<p>Count: " + state.getAgentCount() + "</p>");
 				println("<p><a href=\"/agents\">&gt; agents</a></pi>");
 			}
 
@@ -100,12 +95,12 @@ public class MainPage extends Page {
 			if (status.equals("launching") || status.equals("coreLoading")) {
 				println("<p><em>(loading...)</em></p>");
 			} else {
-				println("<p>Count: " + collection("accounts").countDocuments(mongoSession) + "</p>");
+				println("<p>Count: " + state.getAccountCount() + "</p>");
 				println("<p><a href=\"/list\">&gt; accounts</a></pi>");
 			}
 
 			println("<h3>Nanopubs</h3>");
-			println("<p>Count: " + getMaxValue(mongoSession, "nanopubs", "counter") + "</p>");
+			println("<p>Count: " + state.getNanopubCount() + "</p>");
 			println("<p><a href=\"/nanopubs\">&gt; nanopubs</a></pi>");
 			printHtmlFooter();
 		}
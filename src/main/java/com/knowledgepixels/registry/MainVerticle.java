@@ -1,14 +1,18 @@
 package com.knowledgepixels.registry;
 
-import static com.knowledgepixels.registry.RegistryDB.isSet;
 import static com.knowledgepixels.registry.RegistryDB.has;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.TimeUnit;
 
 import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
 import io.vertx.micrometer.PrometheusScrapingHandler;
 import io.vertx.micrometer.backends.BackendRegistries;
 import org.eclipse.rdf4j.rio.RDFFormat;
@@ -17,7 +21,9 @@ import org.nanopub.MalformedNanopubException;
 import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
 import org.nanopub.extra.server.PublishNanopub;
+import org.nanopub.trusty.TrustyNanopubUtils;
 
+import com.google.gson.Gson;
 import com.mongodb.client.ClientSession;
 
 import io.vertx.core.AbstractVerticle;
@@ -25,43 +31,51 @@ import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import net.trustyuri.TrustyUriUtils;
 
 public class MainVerticle extends AbstractVerticle {
 
+	static final boolean COMPRESSION_ENABLED = !"false".equals(Utils.getEnv("REGISTRY_COMPRESSION", "true"));
+	private static final int COMPRESSION_LEVEL = Integer.parseInt(Utils.getEnv("REGISTRY_COMPRESSION_LEVEL", "6"));
+
 	@Override
 	public void start(Promise<Void> startPromise) throws Exception {
-		HttpServer server = vertx.createHttpServer();
+		HttpServerOptions serverOptions = new HttpServerOptions();
+		if (COMPRESSION_ENABLED) {
+			// Responses are compressed according to Accept-Encoding, also when streamed in chunks:
+			serverOptions.setCompressionSupported(true)
+					.addCompressor(StandardCompressionOptions.gzip(COMPRESSION_LEVEL, 15, 8))
+					.addCompressor(StandardCompressionOptions.deflate(COMPRESSION_LEVEL, 15, 8))
+					.addCompressor(StandardCompressionOptions.zstd());
+		}
+		HttpServer server = vertx.createHttpServer(serverOptions);
 		Router router = Router.router(vertx);
 		server.requestHandler(router);
 		server.listen(9292);
-		router.route(HttpMethod.GET, "/agent*").handler(c -> {
-			// /agent/... | /agents | /agentAccounts
-			ListPage.show(c);
-		});
-		router.route(HttpMethod.GET, "/nanopubs*").handler(c -> {
-			ListPage.show(c);
-		});
-		router.route(HttpMethod.GET, "/list*").handler(c -> {
-			ListPage.show(c);
-		});
-		router.route(HttpMethod.GET, "/pubkeys*").handler(c -> {
+		PageDispatcher dispatcher = new PageDispatcher(vertx);
+		Handler<RoutingContext> listHandler = dispatcher.handler("list", c -> {
 			ListPage.show(c);
 		});
+		// /agent/... | /agents | /agentAccounts
+		router.route(HttpMethod.GET, "/agent*").handler(listHandler);
+		router.route(HttpMethod.GET, "/nanopubs*").handler(listHandler);
+		router.route(HttpMethod.GET, "/list*").handler(listHandler);
+		router.route(HttpMethod.GET, "/pubkeys*").handler(listHandler);
 		router.route(HttpMethod.GET, "/np/").handler(c -> {
 			c.response().putHeader("Location", "/").setStatusCode(307).end();
 		});
-		router.route(HttpMethod.GET, "/np/*").handler(c -> {
+		router.route(HttpMethod.GET, "/np/*").handler(dispatcher.handler("nanopub", c -> {
 			NanopubPage.show(c);
-		});
-		router.route(HttpMethod.GET, "/debug/*").handler(c -> {
+		}));
+		router.route(HttpMethod.GET, "/debug/*").handler(dispatcher.handler("debug", c -> {
 			DebugPage.show(c);
-		});
-		router.route(HttpMethod.GET, "/style.css").handler(c -> {
+		}));
+		router.route(HttpMethod.GET, "/style.css").handler(dispatcher.handler("resource", c -> {
 			ResourcePage.show(c, "style.css", "text/css");
-		});
+		}));
 
 		// Metrics
 		final var metricsHttpServer = vertx.createHttpServer();
@@ -72,23 +86,46 @@ public class MainVerticle extends AbstractVerticle {
 		final var collector = new MetricsCollector(metricsRegistry);
 		metricsRouter.route("/metrics").handler(PrometheusScrapingHandler.create(metricsRegistry));
 
-		router.route(HttpMethod.GET, "/*").handler(c -> {
-			MainPage.show(c);
-		});
-		router.route(HttpMethod.HEAD, "/*").handler(c -> {
+		Handler<RoutingContext> mainHandler = dispatcher.handler("main", c -> {
 			MainPage.show(c);
 		});
+		router.route(HttpMethod.GET, "/*").handler(mainHandler);
+		router.route(HttpMethod.HEAD, "/*").handler(mainHandler);
 
 		Handler<RoutingContext> postHandler = c -> {
-			c.request().bodyHandler(bh -> {
+			if (NanopubIntake.ASYNC && NanopubIntake.isFull()) {
+				setIntakeFullStatus(c);
+				c.response().end();
+				return;
+			}
+			String contentType = Utils.getContentMediaType(c);
+			if (Utils.TYPE_JELLY.equals(contentType)) {
+				// Jelly streams can contain many nanopubs, which are loaded while the body arrives:
+				RequestInputStream in = new RequestInputStream(c.request());
+				dispatcher.dispatchOffEventLoop("post", c, () -> postJellyStream(c, in));
+				return;
+			}
+			// The body is collected on the event loop; processing it involves blocking DB calls, so it's dispatched:
+			c.request().bodyHandler(bh -> dispatcher.dispatch("post", c, () -> {
 				try {
-					String contentType = c.request().getHeader("Content-Type");
+					RDFFormat format = contentType == null ? RDFFormat.TRIG : Rio.getParserFormatForMIMEType(contentType).orElse(RDFFormat.TRIG);
 					Nanopub np = null;
 					try {
-						np = new NanopubImpl(bh.toString(), Rio.getParserFormatForMIMEType(contentType).orElse(RDFFormat.TRIG));
+						np = new NanopubImpl(bh.toString(), format);
 					} catch (MalformedNanopubException ex) {
 						ex.printStackTrace();
 					}
+					if (np != null && NanopubIntake.ASYNC) {
+						// Only checked here; loading and forwarding happen in the background:
+						if (!TrustyNanopubUtils.isValidTrustyNanopub(np)) {
+							c.response().setStatusCode(400).setStatusMessage("Invalid trusty URI: " + np.getUri());
+						} else if (!NanopubIntake.enqueue(np)) {
+							setIntakeFullStatus(c);
+						} else {
+							c.response().setStatusCode(202);
+						}
+						return;
+					}
 					if (np != null) {
 						try (ClientSession s = RegistryDB.getClient().startSession()) {
 							String ac = TrustyUriUtils.getArtifactCode(np.getUri().toString());
@@ -104,7 +141,7 @@ public class MainVerticle extends AbstractVerticle {
 								// Load to lists, if applicable:
 								NanopubLoader.simpleLoad(s, np);
 
-								if (!isSet(s, "serverInfo", "testInstance")) {
+								if (!RegistryState.get().isTestInstance()) {
 									// Here we publish it also to the first-generation services, so they know about it too:
 									// TODO Remove this at some point
 									try {
@@ -122,7 +159,7 @@ public class MainVerticle extends AbstractVerticle {
 				} finally {
 					c.response().end();
 				}
-			});
+			}));
 		};
 		router.route(HttpMethod.POST, "/").handler(postHandler);
 		router.route(HttpMethod.POST, "/np/").handler(postHandler);
@@ -131,6 +168,10 @@ public class MainVerticle extends AbstractVerticle {
 		vertx.executeBlocking(() -> {
 
 			RegistryDB.init();
+			RegistryState.refresh(true);
+			RegistryState.startChangeListener();
+			ContentMigration.start();
+			NanopubIntake.start();
 
 			new Thread(() -> {
 				Task.runTasks();
@@ -144,10 +185,17 @@ public class MainVerticle extends AbstractVerticle {
 		// Periodic metrics update
 		vertx.setPeriodic(1000, id -> collector.updateMetrics());
 
+		// Periodic full refresh of the registry state snapshot, including the collection counts
+		vertx.setPeriodic(RegistryState.REFRESH_INTERVAL, id -> vertx.executeBlocking(() -> {
+			RegistryState.refresh(true);
+			return null;
+		}, false));
+
 		// SHUTDOWN
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			try {
 				System.err.println("Gracefully shutting down...");
+				dispatcher.close();
 				RegistryDB.getClient().close();
 				vertx.close() .toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
 				System.err.println("Graceful shutdown completed");
@@ -159,6 +207,54 @@ public class MainVerticle extends AbstractVerticle {
 
 	}
 
+	private static final Gson gson = new Gson();
+
+	private static void setIntakeFullStatus(RoutingContext c) {
+		c.response().setStatusCode(503).setStatusMessage("Intake queue full")
+				.putHeader("Retry-After", String.valueOf(NanopubIntake.RETRY_AFTER));
+	}
+
+	private static void postJellyStream(RoutingContext c, RequestInputStream in) {
+		Map<String,Integer> counts = new LinkedHashMap<>();
+		counts.put(NanopubLoader.STATUS_LOADED, 0);
+		counts.put(NanopubLoader.STATUS_KNOWN, 0);
+		counts.put(NanopubLoader.STATUS_INVALID, 0);
+		List<Map<String,String>> entries = new ArrayList<>();
+		try (ClientSession s = RegistryDB.getClient().startSession(); in) {
+			boolean forward = !RegistryState.get().isTestInstance();
+			NanopubLoader.simpleLoad(s, in, (np, status) -> {
+				counts.merge(status, 1, Integer::sum);
+				Map<String,String> entry = new LinkedHashMap<>();
+				if (np != null) entry.put("id", np.getUri().stringValue());
+				entry.put("status", status);
+				entries.add(entry);
+				if (np != null && status.equals(NanopubLoader.STATUS_LOADED)) {
+					System.err.println("POST: new nanopub " + np.getUri());
+					if (forward) {
+						// Here we publish it also to the first-generation services, so they know about it too:
+						// TODO Remove this at some point
+						try {
+							if (NanopubIntake.ASYNC) {
+								NanopubIntake.forwardToLegacy(np);
+							} else {
+								new PublishNanopub().publishNanopub(np, "https://np.knowledgepixels.com/");
+							}
+						} catch (IOException ex) {
+							ex.printStackTrace();
+						}
+					}
+				}
+			});
+			Map<String,Object> summary = new LinkedHashMap<>(counts);
+			summary.put("nanopubs", entries);
+			c.response().setStatusCode(200).putHeader("Content-Type", Utils.TYPE_JSON);
+			c.response().end(gson.toJson(summary));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			c.response().setStatusCode(400).setStatusMessage("Error processing nanopubs: " + ex.getMessage()).end();
+		}
+	}
+
 	public String getResourceAsString(String file) {
 		InputStream is = getClass().getClassLoader().getResourceAsStream("com/knowledgepixels/query/" + file);
 		try (Scanner s = new Scanner(is).useDelimiter("\\A")) {
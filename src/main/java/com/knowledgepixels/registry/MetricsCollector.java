@@ -1,6 +1,6 @@
 package com.knowledgepixels.registry;
 
-import com.mongodb.client.ClientSession;
+import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 
@@ -9,8 +9,6 @@ import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.knowledgepixels.registry.RegistryDB.*;
-
 public final class MetricsCollector {
 
     private final AtomicInteger loadCounter = new AtomicInteger(0);
@@ -27,6 +25,14 @@ public final class MetricsCollector {
         Gauge.builder("registry.agent.count", agentCount, AtomicInteger::get).register(meterRegistry);
         Gauge.builder("registry.account.count", accountCount, AtomicInteger::get).register(meterRegistry);
 
+        // Render cache metrics
+        FunctionCounter.builder("registry.render.cache.hits", RenderCache.class, c -> RenderCache.getStats().hitCount())
+            .register(meterRegistry);
+        FunctionCounter.builder("registry.render.cache.misses", RenderCache.class, c -> RenderCache.getStats().missCount())
+            .register(meterRegistry);
+        Gauge.builder("registry.render.cache.entries", RenderCache.class, c -> RenderCache.getEntryCount())
+            .register(meterRegistry);
+
         // Status label metrics
         for (final var status : ServerStatus.values()) {
             AtomicInteger stateGauge = new AtomicInteger(0);
@@ -39,19 +45,24 @@ public final class MetricsCollector {
     }
 
     public void updateMetrics() {
-        try (final var session = RegistryDB.getClient().startSession()) {
+        try {
+            // Read from the in-memory snapshot, so this doesn't need DB queries on the event loop
+            final var state = RegistryState.get();
+
             // Update numeric metrics
-            extractMaximalIntegerValueFromField(session, "nanopubs", "counter")
+            Optional.ofNullable(state.getLoadCounter())
+                .map(Long::intValue)
                 .ifPresent(loadCounter::set);
 
-            extractIntegerValueFromField(session, "serverInfo", "trustStateCounter")
+            Optional.ofNullable(state.getTrustStateCounter())
+                .map(Long::intValue)
                 .ifPresent(trustStateCounter::set);
 
-            agentCount.set(countDocumentsInCollection(session, "agents"));
-            accountCount.set(countDocumentsInCollection(session, "accounts"));
+            agentCount.set((int) state.getAgentCount());
+            accountCount.set((int) state.getAccountCount());
 
             // Update status gauge
-            final var currentStatus = extractStringValueFromField(session, "serverInfo", "status")
+            final var currentStatus = Optional.ofNullable(state.getStatus())
                 .map(ServerStatus::valueOf)
                 .orElse(null);
             for (final var status : ServerStatus.values()) {
@@ -61,43 +72,4 @@ public final class MetricsCollector {
             System.err.printf("Error updating metrics: %s%n", e.getMessage());
         }
     }
-
-    private Optional<Integer> extractMaximalIntegerValueFromField(
-        ClientSession session,
-        String collectionName,
-        String fieldName
-    ) {
-        return Optional
-            .ofNullable(getMaxValue(session, collectionName, fieldName))
-            .filter(Number.class::isInstance)
-            .map(Number.class::cast)
-            .map(Number::intValue);
-    }
-
-    private Optional<Integer> extractIntegerValueFromField(
-        ClientSession session,
-        String collectionName,
-        String fieldName
-    ) {
-        return Optional
-            .ofNullable(getValue(session, collectionName, fieldName))
-            .filter(Number.class::isInstance)
-            .map(Number.class::cast)
-            .map(Number::intValue);
-    }
-
-    private Optional<String> extractStringValueFromField(
-        ClientSession session,
-        String collectionName,
-        String fieldName
-    ) {
-        return Optional
-            .ofNullable(getValue(session, collectionName, fieldName))
-            .filter(String.class::isInstance)
-            .map(String.class::cast);
-    }
-
-    private int countDocumentsInCollection(ClientSession session, String collectionName) {
-        return (int) collection(collectionName).countDocuments(session);
-    }
 }
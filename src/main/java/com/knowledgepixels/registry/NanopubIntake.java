@@ -0,0 +1,281 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.nanopub.MalformedNanopubException;
+import org.nanopub.Nanopub;
+import org.nanopub.extra.server.PublishNanopub;
+import org.nanopub.jelly.JellyUtils;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.ClientSession;
+
+import net.trustyuri.TrustyUriUtils;
+
+/**
+ * Asynchronous acceptance of posted nanopubs, enabled with REGISTRY_POST_MODE=async. Posted nanopubs are
+ * stored in the intake collection and loaded by a background consumer, so the POST request can be answered
+ * right away. Forwarding to the first-generation services then also happens in the background, from the
+ * legacyOutbox collection, with retries.
+ *
+ * Both collections are persisted, so nothing gets lost on a restart. Intake entries that keep failing to load
+ * are moved to the intakeFailed collection after REGISTRY_INTAKE_MAX_ATTEMPTS attempts.
+ */
+public class NanopubIntake {
+
+	private NanopubIntake() {}  // no instances allowed
+
+	public static final boolean ASYNC = "async".equals(Utils.getEnv("REGISTRY_POST_MODE", "sync"));
+
+	public static final long MAX_DEPTH = Long.parseLong(Utils.getEnv("REGISTRY_INTAKE_MAX_DEPTH", "10000"));
+	public static final int RETRY_AFTER = Integer.parseInt(Utils.getEnv("REGISTRY_INTAKE_RETRY_AFTER", "10"));
+	private static final int BATCH_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_INTAKE_BATCH_SIZE", "100"));
+	private static final int MAX_ATTEMPTS = Integer.parseInt(Utils.getEnv("REGISTRY_INTAKE_MAX_ATTEMPTS", "5"));
+
+	private static final String LEGACY_URL = "https://np.knowledgepixels.com/";
+	private static final long MAX_FORWARD_RETRY_DELAY = 60 * 60 * 1000;
+	private static final long POLL_INTERVAL = 1000;
+
+	private static final AtomicLong depth = new AtomicLong();
+	private static final Semaphore newIntake = new Semaphore(0);
+
+	/**
+	 * Starts the background consumer and forwarder, if the asynchronous mode is enabled.
+	 */
+	public static void start() {
+		if (!ASYNC) return;
+		collection("intake").createIndex(ascending("received"));
+		collection("legacyOutbox").createIndex(ascending("not-before"));
+		depth.set(collection("intake").countDocuments());
+
+		Thread consumer = new Thread(NanopubIntake::consume, "intake-consumer");
+		consumer.setDaemon(true);
+		consumer.start();
+		Thread forwarder = new Thread(NanopubIntake::forward, "legacy-forwarder");
+		forwarder.setDaemon(true);
+		forwarder.start();
+	}
+
+	public static boolean isFull() {
+		return depth.get() >= MAX_DEPTH;
+	}
+
+	/**
+	 * Stores the given nanopub in the intake collection for loading. Nanopubs already in the intake are ignored.
+	 * @return false if the intake is full
+	 */
+	public static boolean enqueue(Nanopub np) throws IOException {
+		if (isFull()) return false;
+		String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+		try {
+			collection("intake").insertOne(new Document("_id", ac)
+					.append("jelly", new Binary(JellyUtils.writeNanopubForDB(np)))
+					.append("received", System.currentTimeMillis()));
+			depth.incrementAndGet();
+			newIntake.release();
+		} catch (MongoWriteException e) {
+			// Duplicate key error -- already in the intake
+			if (e.getError().getCode() != 11000) throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the given nanopub to the outbox for the first-generation services.
+	 */
+	public static void forwardToLegacy(Nanopub np) throws IOException {
+		addToOutbox(np, System.currentTimeMillis());
+	}
+
+	// Entries with this not-before time are held back until the load of their nanopub is done:
+	private static final long HELD_BACK = Long.MAX_VALUE;
+
+	private static void addToOutbox(Nanopub np, long notBefore) throws IOException {
+		String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+		try {
+			collection("legacyOutbox").insertOne(new Document("_id", ac)
+					.append("jelly", new Binary(JellyUtils.writeNanopubForDB(np)))
+					.append("attempts", 0)
+					.append("not-before", notBefore));
+		} catch (MongoWriteException e) {
+			// Duplicate key error -- already in the outbox
+			if (e.getError().getCode() != 11000) throw e;
+		}
+	}
+
+	private static void consume() {
+		while (true) {
+			try {
+				List<Document> docs = collection("intake").find().sort(ascending("received")).limit(BATCH_SIZE).into(new ArrayList<>());
+				if (docs.isEmpty()) {
+					newIntake.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					newIntake.drainPermits();
+					continue;
+				}
+				try {
+					load(docs);
+				} catch (Exception ex) {
+					System.err.println("Loading intake batch failed; loading its nanopubs one by one: " + ex.getMessage());
+					ex.printStackTrace();
+					for (Document d : docs) {
+						try {
+							load(List.of(d));
+						} catch (Exception ex2) {
+							loadFailed(d, ex2);
+						}
+					}
+				}
+			} catch (InterruptedException ex) {
+				return;
+			} catch (Exception ex) {
+				System.err.println("Loading from intake failed; retrying: " + ex.getMessage());
+				ex.printStackTrace();
+				if (!sleep(POLL_INTERVAL)) return;
+			}
+		}
+	}
+
+	private static void load(List<Document> docs) throws IOException {
+		List<String> ids = new ArrayList<>();
+		List<Nanopub> nanopubs = new ArrayList<>();
+		for (Document d : docs) {
+			ids.add(d.getString("_id"));
+			try {
+				nanopubs.add(JellyUtils.readFromDB(d.get("jelly", Binary.class).getData()));
+			} catch (RDF4JException | MalformedNanopubException ex) {
+				ex.printStackTrace();
+			}
+		}
+		boolean forward = !RegistryState.get().isTestInstance();
+		if (forward) {
+			// Held-back outbox entries are written before the load, so a crash right after the load doesn't
+			// lose them. Nanopubs stored before don't get one, as they are not new. If we crash after the load,
+			// the next attempt finds them stored but their entries still there from this attempt:
+			Set<String> storedAcs = new HashSet<>();
+			List<String> possiblyKnownAcs = KnownNanopubs.possiblyKnown(ids);
+			if (!possiblyKnownAcs.isEmpty()) {
+				for (Document d : collection("nanopubs").find(in("_id", possiblyKnownAcs)).projection(include("_id"))) {
+					storedAcs.add(d.getString("_id"));
+				}
+			}
+			for (Nanopub np : nanopubs) {
+				if (storedAcs.contains(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()))) continue;
+				addToOutbox(np, HELD_BACK);
+			}
+		}
+		List<String> releasedIds = new ArrayList<>();
+		List<String> invalidIds = new ArrayList<>();
+		try (ClientSession s = RegistryDB.getClient().startSession()) {
+			List<String> statuses = NanopubLoader.simpleLoad(s, nanopubs);
+			for (int i = 0; i < nanopubs.size(); i++) {
+				String ac = TrustyUriUtils.getArtifactCode(nanopubs.get(i).getUri().stringValue());
+				if (statuses.get(i).equals(NanopubLoader.STATUS_INVALID)) {
+					invalidIds.add(ac);
+				} else {
+					if (statuses.get(i).equals(NanopubLoader.STATUS_LOADED)) System.err.println("POST: new nanopub " + nanopubs.get(i).getUri());
+					releasedIds.add(ac);
+				}
+			}
+		}
+		if (forward) {
+			Bson heldBack = eq("not-before", HELD_BACK);
+			if (!releasedIds.isEmpty()) {
+				collection("legacyOutbox").updateMany(and(in("_id", releasedIds), heldBack),
+						new Document("$set", new Document("not-before", System.currentTimeMillis())));
+			}
+			if (!invalidIds.isEmpty()) collection("legacyOutbox").deleteMany(and(in("_id", invalidIds), heldBack));
+		}
+		collection("intake").deleteMany(in("_id", ids));
+		depth.addAndGet(-ids.size());
+	}
+
+	/**
+	 * Counts a failed attempt of loading the given intake entry on its own. Entries that failed MAX_ATTEMPTS
+	 * times are moved to the intakeFailed collection, so they don't hold up the ones behind them.
+	 */
+	private static void loadFailed(Document d, Exception ex) {
+		int attempts = d.getInteger("attempts", 0) + 1;
+		System.err.println("Loading " + d.get("_id") + " from intake failed (attempt " + attempts + "): " + ex.getMessage());
+		if (attempts < MAX_ATTEMPTS) {
+			collection("intake").updateOne(eq("_id", d.get("_id")), new Document("$set", new Document("attempts", attempts)));
+			return;
+		}
+		try {
+			collection("intakeFailed").insertOne(d.append("attempts", attempts)
+					.append("error", String.valueOf(ex.getMessage()))
+					.append("failed", System.currentTimeMillis()));
+		} catch (MongoWriteException e) {
+			// Duplicate key error -- already there from an earlier crash
+			if (e.getError().getCode() != 11000) throw e;
+		}
+		// Its nanopub wasn't loaded, so it isn't forwarded either:
+		collection("legacyOutbox").deleteOne(and(eq("_id", d.get("_id")), eq("not-before", HELD_BACK)));
+		collection("intake").deleteOne(eq("_id", d.get("_id")));
+		depth.decrementAndGet();
+	}
+
+	private static void forward() {
+		while (true) {
+			try {
+				Document d = collection("legacyOutbox")
+						.find(lte("not-before", System.currentTimeMillis()))
+						.sort(ascending("not-before"))
+						.first();
+				if (d == null) {
+					if (!sleep(POLL_INTERVAL)) return;
+					continue;
+				}
+				Nanopub np;
+				try {
+					np = JellyUtils.readFromDB(d.get("jelly", Binary.class).getData());
+				} catch (RDF4JException | MalformedNanopubException ex) {
+					ex.printStackTrace();
+					collection("legacyOutbox").deleteOne(eq("_id", d.get("_id")));
+					continue;
+				}
+				try {
+					new PublishNanopub().publishNanopub(np, LEGACY_URL);
+					collection("legacyOutbox").deleteOne(eq("_id", d.get("_id")));
+				} catch (Exception ex) {
+					int attempts = d.getInteger("attempts", 0) + 1;
+					long delay = Math.min(POLL_INTERVAL << Math.min(attempts, 20), MAX_FORWARD_RETRY_DELAY);
+					System.err.println("Forwarding " + d.get("_id") + " failed (attempt " + attempts + "): " + ex.getMessage());
+					collection("legacyOutbox").updateOne(eq("_id", d.get("_id")), new Document("$set",
+							new Document("attempts", attempts).append("not-before", System.currentTimeMillis() + delay)));
+				}
+			} catch (Exception ex) {
+				System.err.println("Legacy forwarding failed: " + ex.getMessage());
+				if (!sleep(POLL_INTERVAL)) return;
+			}
+		}
+	}
+
+	private static boolean sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException ex) {
+			return false;
+		}
+	}
+
+}
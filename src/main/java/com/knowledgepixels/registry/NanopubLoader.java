@@ -1,6 +1,8 @@
 package com.knowledgepixels.registry;
 
 import static com.knowledgepixels.registry.RegistryDB.has;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,8 +10,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -61,10 +75,121 @@ public class NanopubLoader {
 		}
 		String pubkeyHash = Utils.getHash(pubkey);
 		// TODO Do we need to load anything else here, into the other DB collections?
+		String[] types = getSimpleLoadTypes(mongoSession, pubkeyHash);
+		if (types.length > 0) {
+			RegistryDB.loadNanopub(mongoSession, np, pubkeyHash, types);
+		}
+	}
+
+	/**
+	 * Returns the types of the lists that new nanopubs of the given pubkey are added to, depending on whether
+	 * the pubkey is fully loaded, core-loaded, or not loaded.
+	 */
+	private static String[] getSimpleLoadTypes(ClientSession mongoSession, String pubkeyHash) {
 		if (has(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", "$").append("status", "loaded"))) {
-			RegistryDB.loadNanopub(mongoSession, np, pubkeyHash, "$");
+			return new String[] { "$" };
 		} else if (has(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH).append("status", "loaded"))) {
-			RegistryDB.loadNanopub(mongoSession, np, pubkeyHash, INTRO_TYPE, ENDORSE_TYPE);
+			return new String[] { INTRO_TYPE, ENDORSE_TYPE };
+		}
+		return new String[] {};
+	}
+
+	private static final int LOAD_BATCH_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_LOAD_BATCH_SIZE", "200"));
+
+	public static final String STATUS_LOADED = "loaded";
+	public static final String STATUS_KNOWN = "known";
+	public static final String STATUS_INVALID = "invalid";
+
+	/**
+	 * Stores the given nanopubs and adds them to the lists like {@link #simpleLoad(ClientSession, Nanopub)} does,
+	 * but with batched checks and writes. The signature checks run in parallel.
+	 *
+	 * @return The status of each given nanopub: STATUS_LOADED, STATUS_KNOWN (was already stored before), or
+	 *     STATUS_INVALID (e.g. not properly signed).
+	 */
+	public static List<String> simpleLoad(ClientSession mongoSession, List<Nanopub> nanopubs) {
+		List<String> acs = new ArrayList<>();
+		for (Nanopub np : nanopubs) {
+			String ac = TrustyUriUtils.getArtifactCode(np.getUri().stringValue());
+			if (ac != null) acs.add(ac);
+		}
+		// Nanopubs that are already stored don't need their signatures checked again:
+		Set<String> storedAcs = new HashSet<>();
+		List<String> possiblyKnownAcs = KnownNanopubs.possiblyKnown(acs);
+		if (!possiblyKnownAcs.isEmpty()) {
+			for (Document d : RegistryDB.collection("nanopubs").find(mongoSession, in("_id", possiblyKnownAcs)).projection(include("_id"))) {
+				storedAcs.add(d.getString("_id"));
+			}
+		}
+		List<Nanopub> unknown = new ArrayList<>();
+		for (Nanopub np : nanopubs) {
+			if (!storedAcs.contains(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()))) unknown.add(np);
+		}
+		List<PreparedNanopub> prepared;
+		try {
+			prepared = prepare(unknown, null).get();
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		List<String> statuses = new ArrayList<>();
+		Map<String,List<PreparedNanopub>> newNanopubs = new LinkedHashMap<>();
+		Set<String> newAcs = new HashSet<>();
+		Iterator<PreparedNanopub> preparedIterator = prepared.iterator();
+		for (Nanopub np : nanopubs) {
+			if (storedAcs.contains(TrustyUriUtils.getArtifactCode(np.getUri().stringValue()))) {
+				statuses.add(STATUS_KNOWN);
+				continue;
+			}
+			PreparedNanopub p = preparedIterator.next();
+			if (!p.isLoadable()) {
+				statuses.add(STATUS_INVALID);
+			} else if (!newAcs.add(p.getArtifactCode())) {
+				// Same nanopub appeared earlier in this batch
+				statuses.add(STATUS_KNOWN);
+			} else {
+				statuses.add(STATUS_LOADED);
+				newNanopubs.computeIfAbsent(p.getPubkeyHash(), k -> new ArrayList<>()).add(p);
+			}
+		}
+		for (Map.Entry<String,List<PreparedNanopub>> e : newNanopubs.entrySet()) {
+			// With no types, the nanopubs are only stored and not added to any lists:
+			RegistryDB.loadNanopubs(mongoSession, e.getValue(), e.getKey(), getSimpleLoadTypes(mongoSession, e.getKey()));
+		}
+		return statuses;
+	}
+
+	/**
+	 * Reads a Jelly stream of nanopubs and loads them in batches with {@link #simpleLoad(ClientSession, List)}
+	 * while the stream is read.
+	 *
+	 * @param statusFunction Called for each nanopub with its status after its batch was loaded; the nanopub is
+	 *     null if it couldn't be read, with the status STATUS_INVALID.
+	 */
+	public static void simpleLoad(ClientSession mongoSession, InputStream in, BiConsumer<Nanopub,String> statusFunction) {
+		List<Nanopub> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+		try (var stream = NanopubStream.fromByteStream(in).getAsNanopubs()) {
+			Iterator<MaybeNanopub> iterator = stream.iterator();
+			while (iterator.hasNext()) {
+				MaybeNanopub m = iterator.next();
+				if (!m.isSuccess()) {
+					statusFunction.accept(null, STATUS_INVALID);
+					continue;
+				}
+				batch.add(m.getNanopub());
+				if (batch.size() >= LOAD_BATCH_SIZE) {
+					loadPostedBatch(mongoSession, batch, statusFunction);
+					batch.clear();
+				}
+			}
+		}
+		if (!batch.isEmpty()) loadPostedBatch(mongoSession, batch, statusFunction);
+	}
+
+	private static void loadPostedBatch(ClientSession mongoSession, List<Nanopub> batch, BiConsumer<Nanopub,String> statusFunction) {
+		List<String> statuses = simpleLoad(mongoSession, batch);
+		for (int i = 0; i < batch.size(); i++) {
+			statusFunction.accept(batch.get(i), statuses.get(i));
 		}
 	}
 
@@ -133,6 +258,103 @@ public class NanopubLoader {
 		return Stream.empty();
 	}
 
+	// Number of batches that can be downloaded and prepared ahead of the DB writes:
+	private static final int LOAD_QUEUE_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_LOAD_QUEUE_SIZE", "8"));
+	private static final int LOAD_THREADS = Integer.parseInt(Utils.getEnv("REGISTRY_LOAD_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+	// Signature checks and serializations of the nanopubs to be loaded run on this pool:
+	private static final ForkJoinPool preparePool = new ForkJoinPool(LOAD_THREADS);
+
+	// How often the loading checks whether the download thread is still alive while waiting for the next batch:
+	private static final long DOWNLOAD_CHECK_INTERVAL = 1000;
+
+	// Marks the end of the download in the batch queue:
+	private static final List<PreparedNanopub> END_OF_STREAM = Collections.emptyList();
+
+	/**
+	 * Retrieve the nanopubs of the given type and pubkey from the peers and load them in batches.
+	 *
+	 * This runs as a pipeline: a download thread reads and parses the stream from the peer and hands batches to
+	 * the prepare pool, where the signatures are checked and the DB documents created in parallel. The calling
+	 * thread writes the prepared batches in their original order, so the list positions are the same as when
+	 * loading them one by one. The queue between the stages is bounded, so the download stalls when the writes
+	 * fall behind.
+	 *
+	 * @param type The type of the nanopubs, or "$" for all types.
+	 * @param pubkeyHash The hash of the pubkey of the nanopubs.
+	 * @param processFunction Called for each retrieved nanopub before it is loaded; can be null.
+	 * @return The number of retrieved nanopubs.
+	 */
+	public static long loadFromPeers(ClientSession mongoSession, String type, String pubkeyHash, Consumer<Nanopub> processFunction) {
+		String typeHash = type.equals("$") ? "$" : Utils.getHash(type);
+		long count = 0;
+		BlockingQueue<Future<List<PreparedNanopub>>> queue = new ArrayBlockingQueue<>(LOAD_QUEUE_SIZE);
+		try (var stream = retrieveNanopubsFromPeers(typeHash, pubkeyHash)) {
+			Thread downloadThread = new Thread(() -> downloadBatches(stream, pubkeyHash, queue), "peer-download-" + typeHash);
+			downloadThread.setDaemon(true);
+			downloadThread.start();
+			try {
+				while (true) {
+					Future<List<PreparedNanopub>> next = queue.poll(DOWNLOAD_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+					if (next == null) {
+						// The download thread queues its failure, unless it couldn't even do that (e.g. out of memory):
+						if (!downloadThread.isAlive() && queue.isEmpty()) throw new RuntimeException("Download of nanopubs stopped unexpectedly");
+						continue;
+					}
+					List<PreparedNanopub> batch = next.get();
+					if (batch == END_OF_STREAM) break;
+					if (processFunction != null) {
+						for (PreparedNanopub p : batch) processFunction.accept(p.getNanopub());
+					}
+					RegistryDB.loadNanopubs(mongoSession, batch, pubkeyHash, type);
+					count += batch.size();
+				}
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof RuntimeException rex) throw rex;
+				throw new RuntimeException(ex.getCause());
+			} finally {
+				// Stops the download if the loading failed; closing the stream then ends the connection
+				downloadThread.interrupt();
+			}
+		}
+		return count;
+	}
+
+	private static void downloadBatches(Stream<MaybeNanopub> stream, String pubkeyHash, BlockingQueue<Future<List<PreparedNanopub>>> queue) {
+		try {
+			List<Nanopub> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+			Iterator<MaybeNanopub> iterator = stream.iterator();
+			while (iterator.hasNext()) {
+				MaybeNanopub m = iterator.next();
+				if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
+				batch.add(m.getNanopub());
+				if (batch.size() >= LOAD_BATCH_SIZE) {
+					queue.put(prepare(batch, pubkeyHash));
+					batch = new ArrayList<>(LOAD_BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) queue.put(prepare(batch, pubkeyHash));
+			queue.put(CompletableFuture.completedFuture(END_OF_STREAM));
+		} catch (InterruptedException ex) {
+			// The loading was aborted
+		} catch (Throwable ex) {
+			// Errors too (e.g. a StackOverflowError while parsing), as the loading waits for the end of the queue:
+			if (Thread.currentThread().isInterrupted()) return;
+			try {
+				queue.put(CompletableFuture.failedFuture(ex));
+			} catch (InterruptedException iex) {
+				// The loading was aborted
+			}
+		}
+	}
+
+	static Future<List<PreparedNanopub>> prepare(List<Nanopub> batch, String pubkeyHash) {
+		// The parallel stream runs on the pool it's started from, and keeps the order of the batch:
+		return preparePool.submit(() -> batch.parallelStream().map(np -> RegistryDB.prepareNanopub(np, pubkeyHash)).toList());
+	}
+
 	public static Nanopub retrieveNanopub(ClientSession mongoSession, String nanopubId) {
 		Nanopub np = retrieveLocalNanopub(mongoSession, nanopubId);
 		int tryCount = 0;
@@ -161,6 +383,7 @@ public class NanopubLoader {
 
 	public static Nanopub retrieveLocalNanopub(ClientSession mongoSession, String nanopubId) {
 		String ac = TrustyUriUtils.getArtifactCode(nanopubId);
+		if (!KnownNanopubs.mightContain(ac)) return null;
 		MongoCursor<Document> cursor = RegistryDB.get(mongoSession, "nanopubs", new Document("_id", ac));
 		if (!cursor.hasNext()) return null;
 		try {
@@ -1,10 +1,11 @@
 package com.knowledgepixels.registry;
 
 import static com.knowledgepixels.registry.RegistryDB.collection;
-import static com.knowledgepixels.registry.RegistryDB.isSet;
 import static com.knowledgepixels.registry.Utils.*;
+import static com.mongodb.client.model.Projections.exclude;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.bson.Document;
@@ -12,29 +13,27 @@ import org.bson.types.Binary;
 import org.eclipse.rdf4j.common.exception.RDF4JException;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.nanopub.MalformedNanopubException;
-import org.nanopub.Nanopub;
-import org.nanopub.NanopubImpl;
-import org.nanopub.NanopubUtils;
 
-import com.github.jsonldjava.shaded.com.google.common.base.Charsets;
 import com.mongodb.client.ClientSession;
 
 import eu.neverblink.jelly.core.utils.IoUtils;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.ext.web.RoutingContext;
 
 public class NanopubPage extends Page {
 
+	private static final long CACHE_MAX_AGE = Long.parseLong(Utils.getEnv("REGISTRY_NANOPUB_CACHE_MAX_AGE", "31536000"));
+
 	public static void show(RoutingContext context) {
-		NanopubPage page;
-		try (ClientSession s = RegistryDB.getClient().startSession()) {
-			s.startTransaction();
+		NanopubPage page = null;
+		try (ClientSession s = RegistryDB.startReadSession()) {
 			page = new NanopubPage(s, context);
 			page.show();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			if (page != null) page.finish();
 			context.response().end();
-			// TODO Clean-up here?
 		}
 	}
 
@@ -64,9 +63,34 @@ public class NanopubPage extends Page {
 
 		if (req.matches("/np/RA[a-zA-Z0-9-_]{43}(\\.[a-z]+)?")) {
 			String ac = req.replaceFirst("/np/(RA[a-zA-Z0-9-_]{43})(\\.[a-z]+)?", "$1");
-			Document npDoc = collection("nanopubs").find(new Document("_id", ac)).first();
+			if (ext == null) {
+				// Format was negotiated via the Accept header:
+				c.response().headers().add("Vary", "Accept");
+			}
+			// Nanopubs are trusty-URI addressed and never change, so non-HTML representations can be cached forever:
+			String etag = TYPE_HTML.equals(format) ? null : getEtag(ac, format, presentationFormat);
+			if (etag != null && matchesEtag(c.request().getHeader("If-None-Match"), etag)) {
+				// The client got this ETag from us, so we know the nanopub and don't need to look it up:
+				setCacheHeaders(etag);
+				c.response().setChunked(false);
+				c.response().setStatusCode(304);
+				return;
+			}
+			RDFFormat renderFormat = getRenderFormat(format);
+			if (renderFormat != null) {
+				byte[] rendered = RenderCache.getIfPresent(ac, renderFormat);
+				if (rendered != null) {
+					setCacheHeaders(etag);
+					writeComplete(Buffer.buffer(rendered));
+					return;
+				}
+			}
+			Document npDoc = !KnownNanopubs.mightContain(ac) ? null : collection("nanopubs").find(new Document("_id", ac))
+					// Rendering works from the Jelly bytes, so the TriG content isn't needed then:
+					.projection(renderFormat != null ? exclude("content") : null)
+					.first();
 			if (npDoc == null) {
-				if (!isSet(mongoSession, "serverInfo", "testInstance")) {
+				if (!RegistryState.get().isTestInstance()) {
 					//getResp().sendError(404, "Not found: " + ac);
 					c.response().setStatusCode(307);
 					c.response().putHeader("Location", "https://np.knowledgepixels.com/" + ac);
@@ -76,9 +100,13 @@ public class NanopubPage extends Page {
 					return;
 				}
 			}
+			if (etag != null) setCacheHeaders(etag);
 	//		String url = ServerConf.getInfo().getPublicUrl();
-			if (TYPE_TRIG.equals(format)) {
-				println(npDoc.getString("content"));
+			if (renderFormat != null) {
+				outputNanopub(ac, npDoc, renderFormat);
+			} else if (TYPE_TRIG.equals(format)) {
+				String content = getTrigContent(ac, npDoc);
+				if (content != null) println(content);
 			} else if (TYPE_JELLY.equals(format)) {
 				if (presentationFormat != null && presentationFormat.startsWith("text")) {
 					// Parse the Jelly frame and return it as Protobuf Text Format Language
@@ -95,15 +123,11 @@ public class NanopubPage extends Page {
 							((Binary) npDoc.get("jelly")).getData(),
 							outputStream
 					);
-					c.response().write(outputStream.getBuffer());
+					writeComplete(outputStream.getBuffer());
 				}
-			} else if (format != null && format.equals(TYPE_NQUADS)) {
-				outputNanopub(npDoc, RDFFormat.NQUADS);
-			} else if (format != null && format.equals(TYPE_JSONLD)) {
-				outputNanopub(npDoc, RDFFormat.JSONLD);
-			} else if (format != null && format.equals(TYPE_TRIX)) {
-				outputNanopub(npDoc, RDFFormat.TRIX);
 			} else {
+				String content = getTrigContent(ac, npDoc);
+				if (content == null) return;
 				printHtmlHeader("Nanopublication " + ac + " - Nanopub Registry");
 				println("<h1>Nanopublication</h1>");
 				println("<p><a href=\"/\">&lt; Home</a></p>");
@@ -125,7 +149,7 @@ public class NanopubPage extends Page {
 				println("</p>");
 				println("<h3>Content</h3>");
 				println("<pre>");
-				println(StringEscapeUtils.escapeHtml(npDoc.getString("content")));
+				println(StringEscapeUtils.escapeHtml(content));
 				println("</pre>");
 				printHtmlFooter();
 			}
@@ -135,12 +159,59 @@ public class NanopubPage extends Page {
 		}
 	}
 
-	private void outputNanopub(Document npDoc, RDFFormat rdfFormat) {
+	private static String getEtag(String ac, String format, String presentationFormat) {
+		return "\"" + ac + "/" + format + (presentationFormat == null ? "" : "/" + presentationFormat) + "\"";
+	}
+
+	private void setCacheHeaders(String etag) {
+		// Weak, as the same ETag is sent for the gzip, deflate, zstd and uncompressed bodies:
+		getContext().response().putHeader("ETag", "W/" + etag);
+		getContext().response().putHeader("Cache-Control", "public, max-age=" + CACHE_MAX_AGE + ", immutable");
+	}
+
+	private static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) return false;
+		for (String t : ifNoneMatch.split(",")) {
+			t = t.trim();
+			if (t.startsWith("W/")) t = t.substring(2);
+			if (t.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	private static RDFFormat getRenderFormat(String format) {
+		if (TYPE_TRIG.equals(format) && !RegistryDB.STORE_TRIG) return RDFFormat.TRIG;
+		if (TYPE_NQUADS.equals(format)) return RDFFormat.NQUADS;
+		if (TYPE_JSONLD.equals(format)) return RDFFormat.JSONLD;
+		if (TYPE_TRIX.equals(format)) return RDFFormat.TRIX;
+		return null;
+	}
+
+	/**
+	 * Returns the stored TriG content, or renders it from Jelly for nanopubs stored without it. Returns null
+	 * and sets the error status if this fails.
+	 */
+	private String getTrigContent(String ac, Document npDoc) {
+		String content = npDoc.getString("content");
+		if (content != null) return content;
+		try {
+			byte[] rendered = RenderCache.getIfPresent(ac, RDFFormat.TRIG);
+			if (rendered == null) rendered = RenderCache.render(ac, ((Binary) npDoc.get("jelly")).getData(), RDFFormat.TRIG);
+			return new String(rendered, StandardCharsets.UTF_8);
+		} catch (RDF4JException | MalformedNanopubException | IOException ex) {
+			getContext().response().headers().remove("ETag").remove("Cache-Control");
+			getContext().response().setStatusCode(500).setStatusMessage("Failed transforming nanopub: " + getFullRequest());
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	private void outputNanopub(String ac, Document npDoc, RDFFormat rdfFormat) {
 		RoutingContext c = getContext();
 		try {
-			Nanopub np = new NanopubImpl(npDoc.getString("content"), RDFFormat.TRIG);
-			c.response().write(NanopubUtils.writeToString(np, rdfFormat), Charsets.UTF_8.toString());
+			writeComplete(Buffer.buffer(RenderCache.render(ac, ((Binary) npDoc.get("jelly")).getData(), rdfFormat)));
 		} catch (RDF4JException | MalformedNanopubException | IOException ex) {
+			c.response().headers().remove("ETag").remove("Cache-Control");
 			c.response().setStatusCode(500).setStatusMessage("Failed transforming nanopub: " + getFullRequest());
 			ex.printStackTrace();
 		}
@@ -1,9 +1,5 @@
 package com.knowledgepixels.registry;
 
-import static com.knowledgepixels.registry.RegistryDB.getMaxValue;
-import static com.knowledgepixels.registry.RegistryDB.getValue;
-import static com.knowledgepixels.registry.RegistryDB.isSet;
-
 import java.io.IOException;
 import java.text.DecimalFormat;
 
@@ -11,6 +7,8 @@ import org.apache.commons.lang.StringEscapeUtils;
 
 import com.mongodb.client.ClientSession;
 
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.RoutingContext;
 
@@ -19,8 +17,29 @@ public abstract class Page {
 	protected static final DecimalFormat df8 = new DecimalFormat("0.00000000");
 	protected static final DecimalFormat df1 = new DecimalFormat("0.0");
 
+	// Output of print/println is collected and written in chunks of this size, to avoid sending lots of tiny chunks:
+	private static final int FLUSH_SIZE = 32 * 1024;
+
+	// Bodies smaller than this are sent uncompressed, as compressing them doesn't pay off:
+	static final int COMPRESSION_MIN_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_COMPRESSION_MIN_SIZE", "1024"));
+
+	private static final String HTML_HEADER_START =
+			"<!DOCTYPE HTML>\n" +
+			"<html><head>\n" +
+			"<title>";
+	private static final String HTML_HEADER_END =
+			"</title>\n" +
+			"<meta charset=\"utf-8\"/>\n" +
+			"<script type=\"text/javascript\" src=\"/scripts/nanopub.js\"></script>\n" +
+			"<link rel=\"stylesheet\" href=\"/style.css\" type=\"text/css\" media=\"screen\" title=\"Stylesheet\" />\n" +
+			"</head><body>\n";
+	private static final String HTML_FOOTER = "</body></html>\n";
+
 	private RoutingContext context;
 	protected ClientSession mongoSession;
+	// Output is encoded directly into this buffer, which is handed over to the response as a whole when flushed:
+	private Buffer outputBuffer;
+	private boolean bodyStarted = false;
 
 	private String presentationFormat;
 	private String extension;
@@ -31,15 +50,19 @@ public abstract class Page {
 		this.context = context;
 		context.response().setChunked(true);
 
-		// TODO See whether we can cache these better on our side. Not sure how efficient the MongoDB caching is for these
-		//      kinds of DB queries...
-		context.response().putHeader("Nanopub-Registry-Status", getValue(mongoSession, "serverInfo", "status").toString());
-		context.response().putHeader("Nanopub-Registry-Setup-Id", getValue(mongoSession, "serverInfo", "setupId").toString());
-		context.response().putHeader("Nanopub-Registry-Trust-State-Counter", getValue(mongoSession, "serverInfo", "trustStateCounter").toString());
-		context.response().putHeader("Nanopub-Registry-Last-Trust-State-Update", (String) getValue(mongoSession, "serverInfo", "lastTrustStateUpdate"));
-		context.response().putHeader("Nanopub-Registry-Trust-State-Hash", (String) getValue(mongoSession, "serverInfo", "trustStateHash"));
-		context.response().putHeader("Nanopub-Registry-Load-Counter", getMaxValue(mongoSession, "nanopubs", "counter").toString());
-		context.response().putHeader("Nanopub-Registry-Test-Instance", String.valueOf(isSet(mongoSession, "serverInfo", "testInstance")));
+		// Served from the in-memory snapshot, so no DB queries are needed for these:
+		RegistryState state = RegistryState.get();
+		context.response().putHeader("Nanopub-Registry-Status", String.valueOf(state.getStatus()));
+		context.response().putHeader("Nanopub-Registry-Setup-Id", String.valueOf(state.getSetupId()));
+		context.response().putHeader("Nanopub-Registry-Trust-State-Counter", String.valueOf(state.getTrustStateCounter()));
+		context.response().putHeader("Nanopub-Registry-Last-Trust-State-Update", state.getLastTrustStateUpdate());
+		context.response().putHeader("Nanopub-Registry-Trust-State-Hash", state.getTrustStateHash());
+		context.response().putHeader("Nanopub-Registry-Load-Counter", String.valueOf(state.getLoadCounter()));
+		context.response().putHeader("Nanopub-Registry-Test-Instance", String.valueOf(state.isTestInstance()));
+		if (MainVerticle.COMPRESSION_ENABLED) {
+			// The body depends on Accept-Encoding, so shared caches must not hand it to clients that sent another one:
+			context.response().putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
 
 		String r = context.request().path().substring(1);
 		if (r.endsWith(".txt")) {
@@ -65,12 +88,62 @@ public abstract class Page {
 	}
 
 	public void println(String s) throws IOException {
-		print(s + "\n");
+		print(s);
+		print("\n");
 	}
 
 	public void print(String s) throws IOException {
 		if (context.request().method() == HttpMethod.HEAD) return;
-		context.response().write(s);
+		if (outputBuffer == null) outputBuffer = Buffer.buffer(FLUSH_SIZE + 1024);
+		outputBuffer.appendString(s);
+		if (outputBuffer.length() >= FLUSH_SIZE) flush();
+	}
+
+	/**
+	 * Writes the collected output to the response.
+	 */
+	public void flush() throws IOException {
+		flush(false);
+	}
+
+	private void flush(boolean last) throws IOException {
+		if (outputBuffer == null || outputBuffer.length() == 0) return;
+		// If the whole body is in the buffer, we know its size before the headers are sent:
+		if (last && !bodyStarted) skipCompressionIfSmall(outputBuffer.length());
+		context.response().write(outputBuffer);
+		bodyStarted = true;
+		// The response owns the written buffer now, so the next output goes to a new one:
+		outputBuffer = null;
+		ResponseOutputStream.waitForDrain(context.response());
+	}
+
+	/**
+	 * Writes a body that is complete and known in full, so compression can be skipped if it is small.
+	 */
+	public void writeComplete(Buffer body) throws IOException {
+		if (context.request().method() == HttpMethod.HEAD) return;
+		flush();
+		if (!bodyStarted) skipCompressionIfSmall(body.length());
+		context.response().write(body);
+		bodyStarted = true;
+	}
+
+	private void skipCompressionIfSmall(int size) {
+		if (size < COMPRESSION_MIN_SIZE) {
+			// Tells Vert.x to not compress this response:
+			context.response().putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+		}
+	}
+
+	/**
+	 * Writes the remaining output. To be called before the response is ended.
+	 */
+	protected void finish() {
+		try {
+			flush(true);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
 	}
 
 	public void setRespContentType(String contentType) {
@@ -81,17 +154,13 @@ public abstract class Page {
 	protected abstract void show() throws IOException;
 
 	public void printHtmlHeader(String title) throws IOException {
-		println("<!DOCTYPE HTML>");
-		println("<html><head>");
-		println("<title>" + title + "</title>");
-		println("<meta charset=\"utf-8\"/>");
-		println("<script type=\"text/javascript\" src=\"/scripts/nanopub.js\"></script>");
-		println("<link rel=\"stylesheet\" href=\"/style.css\" type=\"text/css\" media=\"screen\" title=\"Stylesheet\" />");
-		println("</head><body>");
+		print(HTML_HEADER_START);
+		print(title);
+		print(HTML_HEADER_END);
 	}
 
 	public void printHtmlFooter() throws IOException {
-		println("</body></html>");
+		print(HTML_FOOTER);
 	}
 
 	public String escapeHtml(String text) {
@@ -99,7 +168,11 @@ public abstract class Page {
 	}
 
 	public void setCanonicalLink(String url) {
-		context.response().putHeader("Link", "<" + url + ">; rel=\"canonical\"");
+		addLink(url, "canonical");
+	}
+
+	public void addLink(String url, String rel) {
+		context.response().headers().add("Link", "<" + url + ">; rel=\"" + rel + "\"");
 	}
 
 	public String getPresentationFormat() {
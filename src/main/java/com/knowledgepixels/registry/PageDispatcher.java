@@ -0,0 +1,107 @@
+package com.knowledgepixels.registry;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Runs request handlers either directly on the event loop, on a bounded worker pool, or on virtual threads,
+ * so blocking DB access of the pages doesn't stall the event loop.
+ *
+ * The mode is set with REGISTRY_PAGE_DISPATCH (default: worker), and can be overridden per route with
+ * REGISTRY_PAGE_DISPATCH_[ROUTE], e.g. REGISTRY_PAGE_DISPATCH_LIST=virtual.
+ */
+public class PageDispatcher {
+
+	public enum Mode {
+		eventLoop,
+		worker,
+		virtual
+	}
+
+	private static final Mode DEFAULT_MODE = Mode.valueOf(Utils.getEnv("REGISTRY_PAGE_DISPATCH", Mode.worker.name()));
+	private static final int WORKER_POOL_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_PAGE_WORKER_POOL_SIZE", "32"));
+
+	private final WorkerExecutor workerExecutor;
+	private final ExecutorService virtualThreadExecutor;
+
+	public PageDispatcher(Vertx vertx) {
+		workerExecutor = vertx.createSharedWorkerExecutor("registry-pages", WORKER_POOL_SIZE);
+		virtualThreadExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("registry-page-", 0).factory());
+		System.err.println("Page dispatch mode: " + DEFAULT_MODE + " (worker pool size " + WORKER_POOL_SIZE + ")");
+	}
+
+	public static Mode getMode(String routeName) {
+		return Mode.valueOf(Utils.getEnv("REGISTRY_PAGE_DISPATCH_" + routeName.toUpperCase(), DEFAULT_MODE.name()));
+	}
+
+	/**
+	 * Wrap a route handler so it is run in the dispatch mode configured for the given route.
+	 * @param routeName The name of the route, used to look up the per-route configuration.
+	 * @param handler The handler to wrap.
+	 * @return The wrapped handler.
+	 */
+	public Handler<RoutingContext> handler(String routeName, Handler<RoutingContext> handler) {
+		final Mode mode = getMode(routeName);
+		return c -> dispatch(mode, c, () -> handler.handle(c));
+	}
+
+	/**
+	 * Run the given code for the request of the given context in the dispatch mode configured for the given route.
+	 * If the code throws an exception, the request is failed, so the client isn't left waiting for a response.
+	 */
+	public void dispatch(String routeName, RoutingContext c, Runnable runnable) {
+		dispatch(getMode(routeName), c, runnable);
+	}
+
+	/**
+	 * Like {@link #dispatch(String, RoutingContext, Runnable)}, but uses the worker pool instead of the event loop,
+	 * for handlers that wait for something the event loop does, e.g. for a request body to arrive.
+	 */
+	public void dispatchOffEventLoop(String routeName, RoutingContext c, Runnable runnable) {
+		Mode mode = getMode(routeName);
+		dispatch(mode == Mode.eventLoop ? Mode.worker : mode, c, runnable);
+	}
+
+	private void dispatch(Mode mode, RoutingContext c, Runnable runnable) {
+		switch (mode) {
+			case eventLoop:
+				run(c, runnable);
+				break;
+			case worker:
+				workerExecutor.executeBlocking(() -> {
+					run(c, runnable);
+					return null;
+				}, false);
+				break;
+			case virtual:
+				virtualThreadExecutor.execute(() -> run(c, runnable));
+				break;
+		}
+	}
+
+	private static void run(RoutingContext c, Runnable runnable) {
+		try {
+			runnable.run();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			if (c.response().ended()) return;
+			if (c.response().headWritten()) {
+				// Too late for an error status; closing the connection tells the client that the response is incomplete:
+				c.response().close();
+			} else {
+				c.fail(ex);
+			}
+		}
+	}
+
+	public void close() {
+		workerExecutor.close();
+		virtualThreadExecutor.shutdown();
+	}
+
+}
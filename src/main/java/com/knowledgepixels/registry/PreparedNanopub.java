@@ -0,0 +1,76 @@
+package com.knowledgepixels.registry;
+
+import java.util.Set;
+
+import org.bson.Document;
+import org.eclipse.rdf4j.model.IRI;
+import org.nanopub.Nanopub;
+
+/**
+ * A nanopub together with the values that are needed to load it and can be computed without the DB.
+ * See {@link RegistryDB#prepareNanopub(Nanopub, String)}.
+ */
+public class PreparedNanopub {
+
+	private final Nanopub nanopub;
+	private final String pubkey;
+	private final String pubkeyHash;
+	private final String artifactCode;
+	private final Set<IRI> types;
+	private final Document document;
+	private final Set<IRI> invalidatedIds;
+
+	/**
+	 * For nanopubs that failed the checks and are not to be loaded.
+	 */
+	PreparedNanopub(Nanopub nanopub) {
+		this(nanopub, null, null, null, null, null, null);
+	}
+
+	PreparedNanopub(Nanopub nanopub, String pubkey, String pubkeyHash, String artifactCode, Set<IRI> types, Document document,
+			Set<IRI> invalidatedIds) {
+		this.nanopub = nanopub;
+		this.pubkey = pubkey;
+		this.pubkeyHash = pubkeyHash;
+		this.artifactCode = artifactCode;
+		this.types = types;
+		this.document = document;
+		this.invalidatedIds = invalidatedIds;
+	}
+
+	public Nanopub getNanopub() {
+		return nanopub;
+	}
+
+	public boolean isLoadable() {
+		return document != null;
+	}
+
+	public String getPubkey() {
+		return pubkey;
+	}
+
+	public String getPubkeyHash() {
+		return pubkeyHash;
+	}
+
+	public String getArtifactCode() {
+		return artifactCode;
+	}
+
+	public Set<IRI> getTypes() {
+		return types;
+	}
+
+	/**
+	 * Returns the document for the nanopubs collection, still without the counter.
+	 */
+	public Document getDocument() {
+		return document;
+	}
+
+	public Set<IRI> getInvalidatedIds() {
+		return invalidatedIds;
+	}
+
+}
@@ -1,12 +1,23 @@
 package com.knowledgepixels.registry;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Indexes.ascending;
 import static com.mongodb.client.model.Indexes.compoundIndex;
 import static com.mongodb.client.model.Indexes.descending;
+import static com.mongodb.client.model.Projections.include;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.model.CountOptions;
@@ -15,6 +26,8 @@ import org.bson.conversions.Bson;
 import org.bson.types.Binary;
 import org.eclipse.rdf4j.common.exception.RDF4JException;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.nanopub.MalformedNanopubException;
 import org.nanopub.Nanopub;
@@ -24,15 +37,24 @@ import org.nanopub.extra.security.NanopubSignatureElement;
 import org.nanopub.extra.security.SignatureUtils;
 import org.nanopub.jelly.JellyUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoNamespace;
+import com.mongodb.ReadConcern;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertOneModel;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 
 import net.trustyuri.TrustyUriUtils;
 
@@ -43,6 +65,8 @@ public class RegistryDB {
 	private static final String REGISTRY_DB_NAME = Utils.getEnv("REGISTRY_DB_NAME", "nanopubRegistry");
 	private static final String REGISTRY_DB_HOST = Utils.getEnv("REGISTRY_DB_HOST", "mongodb");
 
+	private static final ValueFactory vf = SimpleValueFactory.getInstance();
+
 	private static MongoClient mongoClient;
 	private static MongoDatabase mongoDB;
 
@@ -58,12 +82,32 @@ public class RegistryDB {
 		return mongoDB.getCollection(name);
 	}
 
+	/**
+	 * Returns the collection for the HTTP read path, which only reads majority-committed data. This is used where
+	 * consistency matters, e.g. for list positions and checksums that are compared across registries.
+	 */
+	public static MongoCollection<Document> readCollection(String name) {
+		return mongoDB.getCollection(name).withReadConcern(ReadConcern.MAJORITY);
+	}
+
+	private static final ClientSessionOptions readSessionOptions = ClientSessionOptions.builder().causallyConsistent(false).build();
+
+	/**
+	 * Start a session for the read path of the HTTP pages. These only read, so no transaction is needed, and
+	 * neither is causal consistency.
+	 */
+	public static ClientSession startReadSession() {
+		return mongoClient.startSession(readSessionOptions);
+	}
+
 	private final static IndexOptions unique = new IndexOptions().unique(true);
 
 	public static void init() {
 		if (mongoClient != null) return;
 		mongoClient = new MongoClient(REGISTRY_DB_HOST);
 		mongoDB = mongoClient.getDatabase(REGISTRY_DB_NAME);
+		loadKnownHashes();
+		KnownNanopubs.start();
 
 		try (ClientSession mongoSession = mongoClient.startSession()) {
 			if (isInitialized(mongoSession)) return;
@@ -160,6 +204,7 @@ public class RegistryDB {
 	}
 
 	public static boolean has(ClientSession mongoSession, String collection, String elementName) {
+		if (collection.equals("nanopubs") && !KnownNanopubs.mightContain(elementName)) return false;
 		return has(mongoSession, collection, new Document("_id", elementName));
 	}
 
@@ -240,13 +285,57 @@ public class RegistryDB {
 			);
 	}
 
+	/**
+	 * Creates the list of the given pubkey and type with the given status, unless it exists already. Unlike a check
+	 * followed by an insert, this is a single atomic write, so tasks that run at the same time can call it for the
+	 * same list.
+	 */
+	public static void addList(ClientSession mongoSession, String pubkeyHash, String typeHash, EntryStatus status) {
+		upsertList(mongoSession, pubkeyHash, typeHash, Updates.setOnInsert("status", status.getValue()));
+	}
+
+	/**
+	 * Sets the status of the list of the given pubkey and type, creating the list if it doesn't exist yet.
+	 */
+	public static void setListStatus(ClientSession mongoSession, String pubkeyHash, String typeHash, EntryStatus status) {
+		upsertList(mongoSession, pubkeyHash, typeHash, Updates.set("status", status.getValue()));
+	}
+
+	private static void upsertList(ClientSession mongoSession, String pubkeyHash, String typeHash, Bson update) {
+		Bson find = and(eq("pubkey", pubkeyHash), eq("type", typeHash));
+		try {
+			collection("lists").updateOne(mongoSession, find, update, new UpdateOptions().upsert(true));
+		} catch (MongoWriteException e) {
+			// Duplicate key error -- another upsert created the list at the same time, so now it can be updated:
+			if (e.getError().getCode() != 11000) throw e;
+			collection("lists").updateOne(mongoSession, find, update);
+		}
+	}
+
+	private static final long MAX_KNOWN_HASHES = Long.parseLong(Utils.getEnv("REGISTRY_KNOWN_HASHES_SIZE", "200000"));
+
+	// Hashes whose values are known to be in the hashes collection, so they don't have to be inserted again:
+	private static final Cache<String,Boolean> knownHashes = CacheBuilder.newBuilder().maximumSize(MAX_KNOWN_HASHES).build();
+
+	private static void loadKnownHashes() {
+		try (var c = collection("hashes").find().projection(include("hash")).limit((int) MAX_KNOWN_HASHES).cursor()) {
+			while (c.hasNext()) {
+				knownHashes.put(c.next().getString("hash"), true);
+			}
+		}
+	}
+
 	public static void recordHash(ClientSession mongoSession, String value) {
+		String hash = Utils.getHash(value);
+		if (knownHashes.getIfPresent(hash) != null) return;
 		try {
-			insert(mongoSession, "hashes", new Document("value", value).append("hash", Utils.getHash(value)));
+			insert(mongoSession, "hashes", new Document("value", value).append("hash", hash));
 		} catch (MongoWriteException e) {
 			// Duplicate key error -- ignore it
 			if (e.getError().getCode() != 11000) throw e;
 		}
+		// Values inserted in a transaction are only known to be there once it is committed:
+		if (!mongoSession.hasActiveTransaction()) knownHashes.put(hash, true);
 	}
 
 	public static String unhash(String hash) {
@@ -259,19 +348,24 @@ public class RegistryDB {
 	/**
 	 * Insert nanopub to the DB.
 	 */
+	/**
+	 * The counters of loaded nanopubs are released right after their insert (see {@link CounterAllocator}), which in
+	 * a transaction would let the committed watermark pass nanopubs that are not committed yet. Nanopubs are
+	 * therefore never loaded in transactions.
+	 */
+	private static void checkNoTransaction(ClientSession mongoSession) {
+		if (mongoSession.hasActiveTransaction()) {
+			throw new IllegalStateException("Nanopubs cannot be loaded in a transaction");
+		}
+	}
+
 	public static void loadNanopub(ClientSession mongoSession, Nanopub nanopub) {
 		loadNanopub(mongoSession, nanopub, null);
 	}
 
 	public static void loadNanopub(ClientSession mongoSession, Nanopub nanopub, String pubkeyHash, String... types) {
-		if (nanopub.getTripleCount() > 1200) {
-			System.err.println("Nanopub has too many triples (" + nanopub.getTripleCount() + "): " + nanopub.getUri());
-			return;
-		}
-		if (nanopub.getByteCount() > 1000000) {
-			System.err.println("Nanopub is to large (" + nanopub.getByteCount() + "): " + nanopub.getUri());
-			return;
-		}
+		checkNoTransaction(mongoSession);
+		if (!hasAcceptableSize(nanopub)) return;
 		String pubkey = getPubkey(nanopub);
 		if (pubkey == null) {
 			System.err.println("Ignoring invalid nanopub: " + nanopub.getUri());
@@ -293,133 +387,427 @@ public class RegistryDB {
 		if (has(mongoSession, "nanopubs", ac)) {
 			System.err.println("Already loaded: " + nanopub.getUri());
 		} else {
-			Long counter = (Long) getMaxValue(mongoSession, "nanopubs", "counter");
-			if (counter == null) counter = 0l;
-			String nanopubString;
-			byte[] jellyContent;
+			Set<IRI> npTypes = NanopubUtils.getTypes(nanopub);
+			for (IRI t : npTypes) {
+				recordHash(mongoSession, t.toString());
+			}
+			long counter = CounterAllocator.next();
 			try {
-				nanopubString = NanopubUtils.writeToString(nanopub, RDFFormat.TRIG);
-				// Save the same thing in the Jelly format for faster loading
-				jellyContent = JellyUtils.writeNanopubForDB(nanopub);
-			} catch (IOException ex) {
-				throw new RuntimeException(ex);
+				KnownNanopubs.add(ac);
+				collection("nanopubs").insertOne(mongoSession, createNanopubDocument(nanopub, ac, ph, npTypes).append("counter", counter));
+			} catch (MongoWriteException e) {
+				// Duplicate key error -- a task running at the same time has just loaded it:
+				if (e.getError().getCode() != 11000) throw e;
+				System.err.println("Already loaded: " + nanopub.getUri());
+				return;
+			} finally {
+				CounterAllocator.release(counter);
 			}
-			collection("nanopubs").insertOne(mongoSession,
-					new Document("_id", ac)
-						.append("fullId", nanopub.getUri().stringValue())
-						.append("counter", counter + 1)
-						.append("pubkey", ph)
-						.append("content", nanopubString)
-						.append("jelly", new Binary(jellyContent))
-				);
+			RegistryState.nanopubLoaded(counter);
 
+			List<String> invalidatedAcs = new ArrayList<>();
+			List<Document> invalidations = new ArrayList<>();
 			for (IRI invalidatedId : Utils.getInvalidatedNanopubIds(nanopub)) {
 				String invalidatedAc = TrustyUriUtils.getArtifactCode(invalidatedId.stringValue());
 				if (invalidatedAc == null) continue;  // This should never happen; checking here just to be sure
+				invalidatedAcs.add(invalidatedAc);
+				invalidations.add(new Document("invalidatingNp", ac)
+						.append("invalidatingPubkey", ph)
+						.append("invalidatedNp", invalidatedAc));
+			}
+			if (!invalidatedAcs.isEmpty()) {
+				collection("invalidations").insertMany(mongoSession, invalidations);
 
 				// Add this nanopub also to all lists of invalidated nanopubs:
-				collection("invalidations").insertOne(mongoSession,
-						new Document("invalidatingNp", ac)
-							.append("invalidatingPubkey", ph)
-							.append("invalidatedNp", invalidatedAc)
-					);
-				MongoCursor<Document> invalidatedEntries = collection("listEntries").find(mongoSession,
-						new Document("np", invalidatedAc).append("pubkey", ph)
-					).cursor();
-				while (invalidatedEntries.hasNext()) {
-					Document invalidatedEntry = invalidatedEntries.next();
-					addToList(mongoSession, nanopub, ph, invalidatedEntry.getString("type"));
+				Bson invalidatedEntries = and(in("np", invalidatedAcs), eq("pubkey", ph));
+				Set<String> invalidatedTypes = new LinkedHashSet<>();
+				for (Document d : collection("listEntries").find(mongoSession, invalidatedEntries).projection(include("type"))) {
+					invalidatedTypes.add(d.getString("type"));
+				}
+				for (String typeHash : invalidatedTypes) {
+					addToList(mongoSession, nanopub.getUri(), ac, ph, typeHash);
 				}
 
-				collection("listEntries").updateMany(mongoSession,
-						new Document("np", invalidatedAc).append("pubkey", ph),
-						new Document("$set", new Document("invalidated", true))
-					);
-				collection("trustEdges").updateMany(mongoSession,
-						new Document("source", invalidatedAc),
-						new Document("$set", new Document("invalidated", true))
-					);
+				collection("listEntries").updateMany(mongoSession, invalidatedEntries, Updates.set("invalidated", true));
+				collection("trustEdges").updateMany(mongoSession, in("source", invalidatedAcs), Updates.set("invalidated", true));
 			}
 		}
 
 		if (pubkeyHash != null) {
 			for (String type : types) {
 				// TODO Check if nanopub really has the type?
-				addToList(mongoSession, nanopub, pubkeyHash, Utils.getTypeHash(mongoSession, type));
+				addToList(mongoSession, nanopub.getUri(), ac, pubkeyHash, Utils.getTypeHash(mongoSession, type));
 				if (type.equals("$")) {
 					for (IRI t : NanopubUtils.getTypes(nanopub)) {
-						addToList(mongoSession, nanopub, pubkeyHash, Utils.getTypeHash(mongoSession, t));
+						addToList(mongoSession, nanopub.getUri(), ac, pubkeyHash, Utils.getTypeHash(mongoSession, t));
 					}
 				}
 			}
 		}
 
 		// Add the invalidating nanopubs also to the lists of this nanopub:
-		try (MongoCursor<Document> invalidations = collection("invalidations")
-				.find(mongoSession, new Document("invalidatedNp", ac).append("invalidatingPubkey", ph))
-				.cursor()
-		) {
-			if (invalidations.hasNext()) {
-				collection("listEntries").updateMany(mongoSession,
-						new Document("np", ac).append("pubkey", ph),
-						new Document("$set", new Document("invalidated", true))
-					);
-				collection("trustEdges").updateMany(mongoSession,
-						new Document("source", ac),
-						new Document("$set", new Document("invalidated", true))
-					);
+		List<String> invalidatingAcs = new ArrayList<>();
+		for (Document d : collection("invalidations").find(mongoSession, and(eq("invalidatedNp", ac), eq("invalidatingPubkey", ph)))) {
+			invalidatingAcs.add(d.getString("invalidatingNp"));
+		}
+		if (invalidatingAcs.isEmpty()) return;
+
+		collection("listEntries").updateMany(mongoSession, and(eq("np", ac), eq("pubkey", ph)), Updates.set("invalidated", true));
+		collection("trustEdges").updateMany(mongoSession, eq("source", ac), Updates.set("invalidated", true));
+
+		Map<String,Document> invalidatingDocs = new HashMap<>();
+		for (Document d : collection("nanopubs").find(mongoSession, in("_id", invalidatingAcs)).projection(include("fullId", "types"))) {
+			invalidatingDocs.put(d.getString("_id"), d);
+		}
+		for (String iac : invalidatingAcs) {
+			Document npDoc = invalidatingDocs.get(iac);
+			if (npDoc == null) continue;
+			List<String> typeHashes = npDoc.getList("types", String.class);
+			if (typeHashes == null) typeHashes = addTypeHashes(mongoSession, iac);
+			IRI inpId = vf.createIRI(npDoc.getString("fullId"));
+			for (String typeHash : typeHashes) {
+				addToList(mongoSession, inpId, iac, ph, typeHash);
+			}
+		}
+	}
+
+	/**
+	 * Adds the type hashes to a nanopub that was stored before they were recorded at ingest, and returns them.
+	 */
+	private static List<String> addTypeHashes(ClientSession mongoSession, String ac) {
+		List<String> typeHashes = new ArrayList<>();
+		try {
+			Document npDoc = collection("nanopubs").find(mongoSession, eq("_id", ac)).projection(include("jelly")).first();
+			Nanopub np = JellyUtils.readFromDB(npDoc.get("jelly", Binary.class).getData());
+			for (IRI type : NanopubUtils.getTypes(np)) {
+				typeHashes.add(Utils.getTypeHash(mongoSession, type));
+			}
+			collection("nanopubs").updateOne(mongoSession, eq("_id", ac), Updates.set("types", typeHashes));
+		} catch (RDF4JException | MalformedNanopubException ex) {
+			ex.printStackTrace();
+		}
+		return typeHashes;
+	}
+
+	private static boolean hasAcceptableSize(Nanopub nanopub) {
+		if (nanopub.getTripleCount() > 1200) {
+			System.err.println("Nanopub has too many triples (" + nanopub.getTripleCount() + "): " + nanopub.getUri());
+			return false;
+		}
+		if (nanopub.getByteCount() > 1000000) {
+			System.err.println("Nanopub is to large (" + nanopub.getByteCount() + "): " + nanopub.getUri());
+			return false;
+		}
+		return true;
+	}
+
+	// If false, nanopubs are stored in the Jelly format only, and TriG is rendered from that when requested:
+	static final boolean STORE_TRIG = !"false".equals(Utils.getEnv("REGISTRY_STORE_TRIG", "true"));
+
+	// The counter is added when the nanopub is inserted. The hashes of the given types are stored with it, so
+	// invalidations can be propagated without reading the nanopub again.
+	private static Document createNanopubDocument(Nanopub nanopub, String ac, String pubkeyHash, Set<IRI> types) {
+		String nanopubString = null;
+		byte[] jellyContent;
+		try {
+			if (STORE_TRIG) nanopubString = NanopubUtils.writeToString(nanopub, RDFFormat.TRIG);
+			// Save the same thing in the Jelly format for faster loading
+			jellyContent = JellyUtils.writeNanopubForDB(nanopub);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		List<String> typeHashes = new ArrayList<>();
+		for (IRI t : types) {
+			typeHashes.add(Utils.getHash(t.toString()));
+		}
+		Document doc = new Document("_id", ac)
+				.append("fullId", nanopub.getUri().stringValue())
+				.append("pubkey", pubkeyHash)
+				.append("types", typeHashes);
+		if (nanopubString != null) doc.append("content", nanopubString);
+		return doc.append("jelly", new Binary(jellyContent));
+	}
+
+	/**
+	 * Does the checks and serializations for loading the given nanopub that don't need the DB, i.e. the size
+	 * and signature checks and the conversion to TriG and Jelly. This is thread-safe, so it can run in parallel
+	 * ahead of {@link #loadNanopubs(ClientSession, List, String, String...)}.
+	 *
+	 * @param pubkeyHash The hash of the expected pubkey, or null to accept any.
+	 */
+	public static PreparedNanopub prepareNanopub(Nanopub nanopub, String pubkeyHash) {
+		if (!hasAcceptableSize(nanopub)) return new PreparedNanopub(nanopub);
+		String pubkey = getPubkey(nanopub);
+		if (pubkey == null) {
+			System.err.println("Ignoring invalid nanopub: " + nanopub.getUri());
+			return new PreparedNanopub(nanopub);
+		}
+		String ph = Utils.getHash(pubkey);
+		if (pubkeyHash != null && !pubkeyHash.equals(ph)) {
+			System.err.println("Ignoring nanopub with non-matching pubkey: " + nanopub.getUri());
+			return new PreparedNanopub(nanopub);
+		}
+		String ac = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
+		if (ac == null) {
+			System.err.println("ERROR. Unexpected Trusty URI: " + nanopub.getUri());
+			return new PreparedNanopub(nanopub);
+		}
+		Set<IRI> types = NanopubUtils.getTypes(nanopub);
+		return new PreparedNanopub(nanopub, pubkey, ph, ac, types, createNanopubDocument(nanopub, ac, ph, types),
+				Utils.getInvalidatedNanopubIds(nanopub));
+	}
+
+	private static final BulkWriteOptions unorderedBulkWrite = new BulkWriteOptions().ordered(false);
+	private static final BulkWriteOptions orderedBulkWrite = new BulkWriteOptions().ordered(true);
+
+	/**
+	 * Insert a batch of prepared nanopubs with the given pubkey to the DB and add them to the lists of the given
+	 * types. This has the same effect as calling loadNanopub for each of them in the given order, but the
+	 * existence checks are done with one query per collection and the writes with unordered bulk writes.
+	 * Nanopubs that invalidate other nanopubs or are invalidated themselves need more lookups and are loaded
+	 * one by one.
+	 */
+	public static void loadNanopubs(ClientSession mongoSession, List<PreparedNanopub> nanopubs, String pubkeyHash, String... types) {
+		checkNoTransaction(mongoSession);
+		List<PreparedNanopub> toLoad = new ArrayList<>();
+		List<String> acs = new ArrayList<>();
+		Set<String> hashValues = new HashSet<>();
+		for (PreparedNanopub p : nanopubs) {
+			if (!p.isLoadable()) continue;
+			hashValues.add(p.getPubkey());
+			// The type hashes are stored with each nanopub:
+			for (IRI t : p.getTypes()) {
+				hashValues.add(t.toString());
 			}
-			while (invalidations.hasNext()) {
-				String iac = invalidations.next().getString("invalidatingNp");
-				try {
-					Document npDoc = collection("nanopubs")
-							.find(mongoSession, new Document("_id", iac))
-							.projection(new Document("jelly", 1))
-							.first();
-					Nanopub inp = JellyUtils.readFromDB(npDoc.get("jelly", Binary.class).getData());
-					for (IRI type : NanopubUtils.getTypes(inp)) {
-						addToList(mongoSession, inp, ph, Utils.getTypeHash(mongoSession, type));
+			toLoad.add(p);
+			acs.add(p.getArtifactCode());
+		}
+		if (toLoad.isEmpty()) return;
+
+		Set<String> loadedAcs = new HashSet<>();
+		List<String> possiblyLoadedAcs = KnownNanopubs.possiblyKnown(acs);
+		if (!possiblyLoadedAcs.isEmpty()) {
+			for (Document d : collection("nanopubs").find(mongoSession, in("_id", possiblyLoadedAcs)).projection(include("_id"))) {
+				loadedAcs.add(d.getString("_id"));
+			}
+		}
+		Set<String> invalidatedAcs = new HashSet<>();
+		for (Document d : collection("invalidations").find(mongoSession, and(in("invalidatedNp", acs), eq("invalidatingPubkey", pubkeyHash)))) {
+			invalidatedAcs.add(d.getString("invalidatedNp"));
+		}
+		// Entries are identified here by type hash and artifact code, separated by a space:
+		Set<String> listedEntries = new HashSet<>();
+		for (Document d : collection("listEntries").find(mongoSession, and(in("np", acs), eq("pubkey", pubkeyHash))).projection(include("type", "np"))) {
+			listedEntries.add(d.getString("type") + " " + d.getString("np"));
+		}
+
+		List<List<String>> typeHashes = new ArrayList<>();
+		for (PreparedNanopub p : toLoad) {
+			List<String> l = new ArrayList<>();
+			for (String type : types) {
+				if (type.equals("$")) {
+					l.add("$");
+					for (IRI t : p.getTypes()) {
+						l.add(Utils.getHash(t.toString()));
 					}
-				} catch (RDF4JException | MalformedNanopubException ex) {
-					ex.printStackTrace();
+				} else {
+					hashValues.add(type);
+					l.add(Utils.getHash(type));
 				}
 			}
+			typeHashes.add(l);
+		}
+		List<InsertOneModel<Document>> hashWrites = new ArrayList<>();
+		List<String> newHashes = new ArrayList<>();
+		for (String v : hashValues) {
+			String hash = Utils.getHash(v);
+			if (knownHashes.getIfPresent(hash) != null) continue;
+			hashWrites.add(new InsertOneModel<>(new Document("value", v).append("hash", hash)));
+			newHashes.add(hash);
+		}
+		bulkInsertIgnoringDuplicates(mongoSession, "hashes", hashWrites, "hash");
+		for (String hash : newHashes) knownHashes.put(hash, true);
+
+		List<InsertOneModel<Document>> nanopubWrites = new ArrayList<>();
+		List<InsertOneModel<Document>> entryWrites = new ArrayList<>();
+		List<Long> counters = new ArrayList<>();
+		// The tails of the lists the batch adds to, including the entries not yet written:
+		Map<String,ListTailCache.Tail> listTails = new LinkedHashMap<>();
+
+		try {
+			for (int i = 0; i < toLoad.size(); i++) {
+				PreparedNanopub p = toLoad.get(i);
+				Nanopub nanopub = p.getNanopub();
+				String ac = acs.get(i);
+				Set<IRI> invalidatedIds = p.getInvalidatedIds();
+				if (!invalidatedIds.isEmpty() || invalidatedAcs.contains(ac)) {
+					// Write what we have so far, so the single load sees the current lists:
+					writeBatch(mongoSession, pubkeyHash, nanopubWrites, counters, listTails, entryWrites);
+					loadNanopub(mongoSession, nanopub, pubkeyHash, types);
+					loadedAcs.add(ac);
+					// Later nanopubs of this batch can be invalidated by this one:
+					for (IRI invalidatedId : invalidatedIds) {
+						String invalidatedAc = TrustyUriUtils.getArtifactCode(invalidatedId.stringValue());
+						if (invalidatedAc != null) invalidatedAcs.add(invalidatedAc);
+					}
+					for (String typeHash : typeHashes.get(i)) {
+						listedEntries.add(typeHash + " " + ac);
+					}
+					continue;
+				}
+
+				if (loadedAcs.contains(ac)) {
+					System.err.println("Already loaded: " + nanopub.getUri());
+				} else {
+					long counter = CounterAllocator.next();
+					nanopubWrites.add(new InsertOneModel<>(p.getDocument().append("counter", counter)));
+					counters.add(counter);
+					loadedAcs.add(ac);
+				}
 
+				for (String typeHash : typeHashes.get(i)) {
+					ListTailCache.Tail tail = listTails.computeIfAbsent(typeHash, t -> ListTailCache.get(mongoSession, pubkeyHash, t));
+					if (!listedEntries.add(typeHash + " " + ac)) {
+						System.err.println("Already listed: " + nanopub.getUri());
+						continue;
+					}
+					long position = tail.getPosition() + 1;
+					String checksum = NanopubUtils.updateXorChecksum(nanopub.getUri(), tail.getChecksum());
+					entryWrites.add(new InsertOneModel<>(new Document("pubkey", pubkeyHash)
+							.append("type", typeHash)
+							.append("position", position)
+							.append("np", ac)
+							.append("checksum", checksum)
+							.append("invalidated", false)));
+					listTails.put(typeHash, new ListTailCache.Tail(position, checksum, tail.isListKnown()));
+				}
+			}
+			writeBatch(mongoSession, pubkeyHash, nanopubWrites, counters, listTails, entryWrites);
+		} finally {
+			// Counters of nanopubs that didn't get to their write:
+			for (long counter : counters) {
+				CounterAllocator.release(counter);
+			}
 		}
+	}
 
+	private static void writeBatch(ClientSession mongoSession, String pubkeyHash, List<InsertOneModel<Document>> nanopubWrites,
+			List<Long> counters, Map<String,ListTailCache.Tail> listTails, List<InsertOneModel<Document>> entryWrites) {
+		try {
+			for (InsertOneModel<Document> w : nanopubWrites) {
+				KnownNanopubs.add(w.getDocument().getString("_id"));
+			}
+			Set<Integer> duplicates = bulkInsertIgnoringDuplicates(mongoSession, "nanopubs", nanopubWrites, "_id");
+			// Only the nanopubs that were actually inserted count:
+			for (int i = 0; i < counters.size(); i++) {
+				if (!duplicates.contains(i)) RegistryState.nanopubLoaded(counters.get(i));
+			}
+			List<InsertOneModel<Document>> listWrites = new ArrayList<>();
+			for (Map.Entry<String,ListTailCache.Tail> e : listTails.entrySet()) {
+				if (e.getValue().isListKnown()) continue;
+				listWrites.add(new InsertOneModel<>(new Document("pubkey", pubkeyHash).append("type", e.getKey())));
+			}
+			bulkInsertIgnoringDuplicates(mongoSession, "lists", listWrites, "pubkey", "type");
+			// Positions and checksums were computed in memory, so any conflict here has to fail the load, and no entry
+			// after it must be written, as it would follow a position that isn't there:
+			if (!entryWrites.isEmpty()) collection("listEntries").bulkWrite(mongoSession, entryWrites, orderedBulkWrite);
+			for (Map.Entry<String,ListTailCache.Tail> e : listTails.entrySet()) {
+				ListTailCache.Tail t = e.getValue();
+				ListTailCache.put(mongoSession, pubkeyHash, e.getKey(), new ListTailCache.Tail(t.getPosition(), t.getChecksum(), true));
+			}
+		} catch (RuntimeException ex) {
+			// Some of the entries might have been written, so the cached tails can't be trusted anymore:
+			for (String typeHash : listTails.keySet()) {
+				ListTailCache.invalidate(mongoSession, pubkeyHash, typeHash);
+			}
+			throw ex;
+		} finally {
+			for (long counter : counters) {
+				CounterAllocator.release(counter);
+			}
+			nanopubWrites.clear();
+			counters.clear();
+			listTails.clear();
+			entryWrites.clear();
+		}
 	}
 
-	private static void addToList(ClientSession mongoSession, Nanopub nanopub, String pubkeyHash, String typeHash) {
-		String ac = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
+	/**
+	 * Inserts the given documents with an unordered bulk write, skipping the ones that hit a unique index.
+	 *
+	 * @param keyFields The fields of a unique index that identify the documents that are already there
+	 * @return The indexes of the writes that were skipped as duplicates
+	 */
+	static Set<Integer> bulkInsertIgnoringDuplicates(ClientSession mongoSession, String collection, List<InsertOneModel<Document>> writes, String... keyFields) {
+		Set<Integer> duplicates = new HashSet<>();
+		if (writes.isEmpty()) return duplicates;
+		if (mongoSession.hasActiveTransaction()) {
+			// In transactions, a failed insert would abort the whole transaction, so we check first:
+			List<InsertOneModel<Document>> newWrites = new ArrayList<>();
+			for (int i = 0; i < writes.size(); i++) {
+				Document key = new Document();
+				for (String f : keyFields) {
+					key.append(f, writes.get(i).getDocument().get(f));
+				}
+				if (has(mongoSession, collection, key)) {
+					duplicates.add(i);
+				} else {
+					newWrites.add(writes.get(i));
+				}
+			}
+			if (!newWrites.isEmpty()) collection(collection).bulkWrite(mongoSession, newWrites, unorderedBulkWrite);
+			return duplicates;
+		}
 		try {
-			insert(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", typeHash));
-		} catch (MongoWriteException e) {
-			// Duplicate key error -- ignore it
-			if (e.getError().getCode() != 11000) throw e;
+			collection(collection).bulkWrite(mongoSession, writes, unorderedBulkWrite);
+		} catch (MongoBulkWriteException ex) {
+			for (BulkWriteError e : ex.getWriteErrors()) {
+				// Duplicate key errors are ignored
+				if (e.getCode() != 11000) throw ex;
+				duplicates.add(e.getIndex());
+			}
 		}
+		return duplicates;
+	}
 
-		if (has(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash).append("np", ac))) {
-			System.err.println("Already listed: " + nanopub.getUri());
-		} else {
-			
-			Document doc = getMaxValueDocument(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash), "position");
-			long position;
-			String checksum;
-			if (doc == null) {
-				position = 0l;
-				checksum = NanopubUtils.updateXorChecksum(nanopub.getUri(), NanopubUtils.INIT_CHECKSUM);
-			} else {
-				position = doc.getLong("position") + 1;
-				checksum = NanopubUtils.updateXorChecksum(nanopub.getUri(), doc.getString("checksum"));
+	private static void addToList(ClientSession mongoSession, IRI npId, String ac, String pubkeyHash, String typeHash) {
+		ListTailCache.Tail tail = ListTailCache.get(mongoSession, pubkeyHash, typeHash);
+		if (!tail.isListKnown()) {
+			try {
+				insert(mongoSession, "lists", new Document("pubkey", pubkeyHash).append("type", typeHash));
+			} catch (MongoWriteException e) {
+				// Duplicate key error -- ignore it
+				if (e.getError().getCode() != 11000) throw e;
+			}
+		}
+
+		// In transactions, a failed insert would abort the whole transaction, so we check first:
+		boolean checkFirst = mongoSession.hasActiveTransaction();
+		for (int attempt = 0; true; attempt++) {
+			if ((checkFirst || attempt > 0) && has(mongoSession, "listEntries", new Document("pubkey", pubkeyHash).append("type", typeHash).append("np", ac))) {
+				System.err.println("Already listed: " + npId);
+				ListTailCache.put(mongoSession, pubkeyHash, typeHash, new ListTailCache.Tail(tail.getPosition(), tail.getChecksum(), true));
+				return;
+			}
+			long position = tail.getPosition() + 1;
+			String checksum = NanopubUtils.updateXorChecksum(npId, tail.getChecksum());
+			try {
+				collection("listEntries").insertOne(mongoSession,
+						new Document("pubkey", pubkeyHash)
+							.append("type", typeHash)
+							.append("position", position)
+							.append("np", ac)
+							.append("checksum", checksum)
+							.append("invalidated", false)
+					);
+				ListTailCache.put(mongoSession, pubkeyHash, typeHash, new ListTailCache.Tail(position, checksum, true));
+				return;
+			} catch (MongoWriteException e) {
+				// A duplicate key means that the nanopub is already listed or the cached tail is outdated:
+				if (e.getError().getCode() != 11000 || attempt > 0) throw e;
+				ListTailCache.invalidate(mongoSession, pubkeyHash, typeHash);
+				tail = ListTailCache.get(mongoSession, pubkeyHash, typeHash);
 			}
-			collection("listEntries").insertOne(mongoSession,
-					new Document("pubkey", pubkeyHash)
-						.append("type", typeHash)
-						.append("position", position)
-						.append("np", ac)
-						.append("checksum", checksum)
-						.append("invalidated", false)
-				);
 		}
 	}
 
@@ -1,14 +1,8 @@
 package com.knowledgepixels.registry;
 
-import static com.knowledgepixels.registry.RegistryDB.collection;
-import static com.knowledgepixels.registry.RegistryDB.getMaxValue;
-import static com.knowledgepixels.registry.RegistryDB.getValue;
-import static com.knowledgepixels.registry.RegistryDB.isSet;
-
 import java.io.Serializable;
 
 import com.google.gson.Gson;
-import com.mongodb.client.ClientSession;
 
 @SuppressWarnings("unused")
 public class RegistryInfo implements Serializable {
@@ -32,22 +26,23 @@ public class RegistryInfo implements Serializable {
 
 	private static Gson gson = new Gson();
 
-	public static RegistryInfo getLocal(ClientSession mongoSession) {
+	public static RegistryInfo getLocal() {
+		RegistryState state = RegistryState.get();
 		RegistryInfo ri = new RegistryInfo();
-		ri.setupId = (Long) getValue(mongoSession, "serverInfo", "setupId");
-		ri.trustStateCounter = (Long) getValue(mongoSession, "serverInfo", "trustStateCounter");
-		ri.lastTrustStateUpdate = (String) getValue(mongoSession, "serverInfo", "lastTrustStateUpdate");
-		ri.trustStateHash = (String) getValue(mongoSession, "serverInfo", "trustStateHash");
-		ri.loadCounter = (Long) getMaxValue(mongoSession, "nanopubs", "counter");
-		ri.status = (String) getValue(mongoSession, "serverInfo", "status");
-		ri.coverageTypes = (String) getValue(mongoSession, "serverInfo", "coverageTypes");
-		ri.coverateAgents = (String) getValue(mongoSession, "serverInfo", "coverageAgents");
-		ri.currentSetting = (String) getValue(mongoSession, "setting", "current");
-		ri.originalSetting = (String) getValue(mongoSession, "setting", "original");
-		ri.agentCount = collection("agents").countDocuments(mongoSession);
-		ri.accountCount = collection("accounts").countDocuments(mongoSession);
-		ri.nanopubCount = collection("nanopubs").countDocuments(mongoSession);
-		ri.isTestInstance = isSet(mongoSession, "serverInfo", "testInstance");
+		ri.setupId = state.getSetupId();
+		ri.trustStateCounter = state.getTrustStateCounter();
+		ri.lastTrustStateUpdate = state.getLastTrustStateUpdate();
+		ri.trustStateHash = state.getTrustStateHash();
+		ri.loadCounter = state.getLoadCounter();
+		ri.status = state.getStatus();
+		ri.coverageTypes = state.getCoverageTypes();
+		ri.coverateAgents = state.getCoverageAgents();
+		ri.currentSetting = state.getCurrentSetting();
+		ri.originalSetting = state.getOriginalSetting();
+		ri.agentCount = state.getAgentCount();
+		ri.accountCount = state.getAccountCount();
+		ri.nanopubCount = state.getNanopubCount();
+		ri.isTestInstance = state.isTestInstance();
 		return ri;
 	}
 
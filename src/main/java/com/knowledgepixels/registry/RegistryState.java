@@ -0,0 +1,186 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getMaxValue;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mongodb.client.ClientSession;
+
+/**
+ * In-memory snapshot of the registry state (serverInfo and setting values, load counter, collection counts),
+ * so the Nanopub-Registry-* headers, the main page, and the metrics can be served without DB reads.
+ *
+ * The snapshot is refreshed after each task run and when a change notification for serverInfo or setting
+ * arrives. The collection counts are only updated with the periodic full refresh. Newly loaded nanopubs
+ * update the load counter directly.
+ */
+public class RegistryState {
+
+	static final long REFRESH_INTERVAL = Long.parseLong(Utils.getEnv("REGISTRY_STATE_REFRESH_INTERVAL", "10000"));
+
+	private static volatile RegistryState current;
+
+	private final Map<String,Object> serverInfo;
+	private final Map<String,Object> setting;
+	private volatile Long loadCounter;
+	private volatile long nanopubCount;
+	private final long agentCount;
+	private final long accountCount;
+
+	private RegistryState(Map<String,Object> serverInfo, Map<String,Object> setting, Long loadCounter, long nanopubCount, long agentCount, long accountCount) {
+		this.serverInfo = serverInfo;
+		this.setting = setting;
+		this.loadCounter = loadCounter;
+		this.nanopubCount = nanopubCount;
+		this.agentCount = agentCount;
+		this.accountCount = accountCount;
+	}
+
+	/**
+	 * Returns the current snapshot, loading it from the DB if this hasn't happened yet.
+	 */
+	public static RegistryState get() {
+		if (current == null) refresh(true);
+		return current;
+	}
+
+	/**
+	 * Reloads the snapshot from the DB. Errors are logged and the previous snapshot is kept.
+	 * @param withCounts Whether to also recount the documents of the nanopubs, agents and accounts collections.
+	 */
+	public static void refresh(boolean withCounts) {
+		try (ClientSession s = RegistryDB.getClient().startSession()) {
+			refresh(s, withCounts);
+		} catch (Exception ex) {
+			System.err.println("Failed to refresh registry state: " + ex.getMessage());
+		}
+	}
+
+	private static synchronized void refresh(ClientSession mongoSession, boolean withCounts) {
+		RegistryState previous = current;
+		Map<String,Object> serverInfo = readValues(mongoSession, "serverInfo");
+		Map<String,Object> setting = readValues(mongoSession, "setting");
+		Long loadCounter = (Long) getMaxValue(mongoSession, "nanopubs", "counter");
+		long nanopubCount, agentCount, accountCount;
+		if (withCounts || previous == null) {
+			// The nanopubs collection is large; its metadata-based count is good enough here:
+			nanopubCount = collection("nanopubs").estimatedDocumentCount();
+			agentCount = collection("agents").countDocuments(mongoSession);
+			accountCount = collection("accounts").countDocuments(mongoSession);
+		} else {
+			nanopubCount = previous.nanopubCount;
+			agentCount = previous.agentCount;
+			accountCount = previous.accountCount;
+		}
+		current = new RegistryState(serverInfo, setting, loadCounter, nanopubCount, agentCount, accountCount);
+	}
+
+	private static Map<String,Object> readValues(ClientSession mongoSession, String collectionName) {
+		Map<String,Object> values = new HashMap<>();
+		for (Document d : collection(collectionName).find(mongoSession)) {
+			values.put(d.get("_id").toString(), d.get("value"));
+		}
+		return values;
+	}
+
+	/**
+	 * To be called when a nanopub was inserted with the given counter and the insert is committed. Inserts that
+	 * were skipped as duplicates don't count.
+	 */
+	public static synchronized void nanopubLoaded(long counter) {
+		RegistryState state = current;
+		if (state == null) return;
+		if (state.loadCounter == null || state.loadCounter < counter) state.loadCounter = counter;
+		state.nanopubCount++;
+	}
+
+	/**
+	 * Starts a background thread that refreshes the snapshot whenever serverInfo or setting change. This needs
+	 * MongoDB to run as a replica set; otherwise it keeps retrying and we rely on the other refresh paths.
+	 */
+	public static void startChangeListener() {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try (var cursor = RegistryDB.getDB().watch(List.of(match(in("ns.coll", "serverInfo", "setting")))).cursor()) {
+					while (cursor.hasNext()) {
+						cursor.next();
+						refresh(false);
+					}
+				} catch (Exception ex) {
+					System.err.println("Change stream for registry state unavailable: " + ex.getMessage());
+				}
+				try {
+					Thread.sleep(REFRESH_INTERVAL);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}, "registry-state-listener");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getStatus() {
+		return (String) serverInfo.get("status");
+	}
+
+	public Long getSetupId() {
+		return (Long) serverInfo.get("setupId");
+	}
+
+	public Long getTrustStateCounter() {
+		return (Long) serverInfo.get("trustStateCounter");
+	}
+
+	public String getLastTrustStateUpdate() {
+		return (String) serverInfo.get("lastTrustStateUpdate");
+	}
+
+	public String getTrustStateHash() {
+		return (String) serverInfo.get("trustStateHash");
+	}
+
+	public String getCoverageTypes() {
+		return (String) serverInfo.get("coverageTypes");
+	}
+
+	public String getCoverageAgents() {
+		return (String) serverInfo.get("coverageAgents");
+	}
+
+	public boolean isTestInstance() {
+		return Boolean.TRUE.equals(serverInfo.get("testInstance"));
+	}
+
+	public String getOriginalSetting() {
+		return (String) setting.get("original");
+	}
+
+	public String getCurrentSetting() {
+		return (String) setting.get("current");
+	}
+
+	public Long getLoadCounter() {
+		return loadCounter;
+	}
+
+	public long getNanopubCount() {
+		return nanopubCount;
+	}
+
+	public long getAgentCount() {
+		return agentCount;
+	}
+
+	public long getAccountCount() {
+		return accountCount;
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.knowledgepixels.registry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.nanopub.MalformedNanopubException;
+import org.nanopub.Nanopub;
+import org.nanopub.NanopubUtils;
+import org.nanopub.jelly.JellyUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Size-bounded LRU cache of nanopubs rendered into formats that are not stored in the DB (N-Quads, JSON-LD, TriX,
+ * and TriG for nanopubs stored in Jelly only), keyed by artifact code and format.
+ */
+public class RenderCache {
+
+	private RenderCache() {}  // no instances allowed
+
+	private static final long MAX_SIZE_BYTES = Long.parseLong(Utils.getEnv("REGISTRY_RENDER_CACHE_SIZE_MB", "64")) * 1024 * 1024;
+
+	private static final Cache<String,byte[]> cache = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_SIZE_BYTES)
+			.weigher((String key, byte[] value) -> key.length() + value.length)
+			.recordStats()
+			.build();
+
+	private static String getKey(String ac, RDFFormat format) {
+		return ac + " " + format.getDefaultMIMEType();
+	}
+
+	/**
+	 * Returns the cached rendering, or null if there is none. Counts as hit or miss.
+	 */
+	public static byte[] getIfPresent(String ac, RDFFormat format) {
+		return cache.getIfPresent(getKey(ac, format));
+	}
+
+	/**
+	 * Renders the nanopub from its stored Jelly bytes (which is faster to parse than TriG) and caches the result.
+	 */
+	public static byte[] render(String ac, byte[] jelly, RDFFormat format) throws RDF4JException, MalformedNanopubException, IOException {
+		Nanopub np = JellyUtils.readFromDB(jelly);
+		byte[] rendered = NanopubUtils.writeToString(np, format).getBytes(StandardCharsets.UTF_8);
+		cache.put(getKey(ac, format), rendered);
+		return rendered;
+	}
+
+	public static CacheStats getStats() {
+		return cache.stats();
+	}
+
+	public static long getEntryCount() {
+		return cache.size();
+	}
+
+}
@@ -0,0 +1,103 @@
+package com.knowledgepixels.registry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+
+/**
+ * Input stream that reads the body of an HTTP request as it arrives, so large uploads can be processed
+ * incrementally. The request is paused while MAX_QUEUED_CHUNKS chunks are waiting to be read, so the memory
+ * use stays flat.
+ *
+ * This has to be created on the event loop before the body arrives, and read from another thread
+ * (see {@link PageDispatcher#dispatchOffEventLoop(String, Runnable)}).
+ */
+public class RequestInputStream extends InputStream {
+
+	private static final int MAX_QUEUED_CHUNKS = 16;
+
+	// Marks the end of the body in the queue:
+	private static final Buffer END = Buffer.buffer();
+
+	private final HttpServerRequest request;
+	private final Context context;
+	private final BlockingQueue<Buffer> queue = new LinkedBlockingQueue<>();
+	private volatile boolean paused = false;
+	private volatile Throwable failure;
+	private Buffer current = Buffer.buffer();
+	private int pos = 0;
+	private boolean ended = false;
+
+	public RequestInputStream(HttpServerRequest request) {
+		this.request = request;
+		this.context = Vertx.currentContext();
+		request.handler(b -> {
+			// Flagged before the chunk is queued, so the reader sees the flag when it takes the chunk:
+			if (queue.size() + 1 >= MAX_QUEUED_CHUNKS) {
+				paused = true;
+				request.pause();
+			}
+			queue.add(b);
+		});
+		request.exceptionHandler(ex -> {
+			failure = ex;
+			queue.add(END);
+		});
+		request.endHandler(v -> queue.add(END));
+	}
+
+	private boolean nextChunk() throws IOException {
+		if (ended) return false;
+		while (pos >= current.length()) {
+			try {
+				current = queue.take();
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			pos = 0;
+			if (current == END) {
+				ended = true;
+				if (failure != null) throw new IOException(failure);
+				return false;
+			}
+			if (paused && queue.size() < MAX_QUEUED_CHUNKS / 2) {
+				paused = false;
+				context.runOnContext(v -> request.resume());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) return -1;
+		return current.getByte(pos++) & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!nextChunk()) return -1;
+		int n = Math.min(len, current.length() - pos);
+		current.getBytes(pos, pos + n, bytes, offset);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Reads and drops the rest of the body.
+	 */
+	@Override
+	public void close() throws IOException {
+		while (nextChunk()) {
+			pos = current.length();
+		}
+	}
+
+}
@@ -12,16 +12,15 @@ import io.vertx.ext.web.RoutingContext;
 public class ResourcePage extends Page {
 
 	public static void show(RoutingContext context, String resourceName, String resourceType) {
-		ResourcePage page;
-		try (ClientSession s = RegistryDB.getClient().startSession()) {
-			s.startTransaction();
+		ResourcePage page = null;
+		try (ClientSession s = RegistryDB.startReadSession()) {
 			page = new ResourcePage(s, context, resourceName, resourceType);
 			page.show();
 		} catch (IOException ex) {
 			ex.printStackTrace();
 		} finally {
+			if (page != null) page.finish();
 			context.response().end();
-			// TODO Clean-up here?
 		}
 	}
 
@@ -0,0 +1,85 @@
+package com.knowledgepixels.registry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Output stream that writes directly to a (chunked) HTTP response, instead of collecting everything in
+ * memory first. Small writes are coalesced up to FLUSH_SIZE bytes. If the write queue of the response is
+ * full, the writing thread waits for it to drain, so the memory use stays flat no matter how much is written.
+ *
+ * Waiting only happens off the event loop (see {@link PageDispatcher}); on the event loop the data is
+ * just queued.
+ */
+public class ResponseOutputStream extends OutputStream {
+
+	private static final int FLUSH_SIZE = 16 * 1024;
+	private static final long DRAIN_CHECK_INTERVAL = 1000;
+
+	private final HttpServerResponse response;
+	private Buffer pending = Buffer.buffer(FLUSH_SIZE);
+
+	public ResponseOutputStream(HttpServerResponse response) {
+		this.response = response;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		pending.appendByte((byte)(b & 0xFF));
+		if (pending.length() >= FLUSH_SIZE) flush();
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int len) throws IOException {
+		pending.appendBytes(bytes, offset, len);
+		if (pending.length() >= FLUSH_SIZE) flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (pending.length() == 0) return;
+		if (response.closed()) throw new IOException("Connection closed");
+		response.write(pending);
+		pending = Buffer.buffer(FLUSH_SIZE);
+		waitForDrain(response);
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Blocks until the write queue of the given response isn't full anymore. Returns immediately when called
+	 * on the event loop.
+	 */
+	static void waitForDrain(HttpServerResponse response) throws IOException {
+		if (!response.writeQueueFull() || Context.isOnEventLoopThread()) return;
+		CompletableFuture<Void> drained = new CompletableFuture<>();
+		response.drainHandler(v -> drained.complete(null));
+		try {
+			// Checking again, in case the queue was drained before the drain handler was set:
+			while (response.writeQueueFull()) {
+				try {
+					drained.get(DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+					return;
+				} catch (TimeoutException ex) {
+					if (response.closed()) throw new IOException("Connection closed");
+				}
+			}
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new IOException(ex);
+		} finally {
+			response.drainHandler(null);
+		}
+	}
+
+}
@@ -5,8 +5,8 @@ import static com.knowledgepixels.registry.NanopubLoader.ENDORSE_TYPE;
 import static com.knowledgepixels.registry.NanopubLoader.ENDORSE_TYPE_HASH;
 import static com.knowledgepixels.registry.NanopubLoader.INTRO_TYPE;
 import static com.knowledgepixels.registry.NanopubLoader.INTRO_TYPE_HASH;
+import static com.knowledgepixels.registry.RegistryDB.addList;
 import static com.knowledgepixels.registry.RegistryDB.collection;
-import static com.knowledgepixels.registry.RegistryDB.get;
 import static com.knowledgepixels.registry.RegistryDB.getOne;
 import static com.knowledgepixels.registry.RegistryDB.getValue;
 import static com.knowledgepixels.registry.RegistryDB.has;
@@ -15,25 +15,24 @@ import static com.knowledgepixels.registry.RegistryDB.insert;
 import static com.knowledgepixels.registry.RegistryDB.loadNanopub;
 import static com.knowledgepixels.registry.RegistryDB.rename;
 import static com.knowledgepixels.registry.RegistryDB.set;
+import static com.knowledgepixels.registry.RegistryDB.setListStatus;
 import static com.knowledgepixels.registry.RegistryDB.setValue;
 import static com.knowledgepixels.registry.ServerStatus.*;
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Sorts.ascending;
-import static com.mongodb.client.model.Sorts.descending;
-import static com.mongodb.client.model.Sorts.orderBy;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.lang.Validate;
 import org.bson.Document;
@@ -41,7 +40,6 @@ import org.eclipse.rdf4j.common.exception.RDF4JException;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Statement;
 import org.nanopub.MalformedNanopubException;
-import org.nanopub.Nanopub;
 import org.nanopub.NanopubImpl;
 import org.nanopub.extra.index.IndexUtils;
 import org.nanopub.extra.index.NanopubIndex;
@@ -52,9 +50,7 @@ import org.nanopub.extra.setting.IntroNanopub;
 import org.nanopub.extra.setting.NanopubSetting;
 
 import com.mongodb.client.ClientSession;
-import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 
 import net.trustyuri.TrustyUriUtils;
 
@@ -210,10 +206,15 @@ public enum Task implements Serializable {
 		public void run(ClientSession s, Document taskDoc) {
 
 			int depth = taskDoc.getInteger("depth");
+			long startTime = System.currentTimeMillis();
 
-			if (has(s, "endorsements_loading", new Document("status", toRetrieve.getValue()))) {
+			for (int count = 0; !isBatchDone(count, startTime); count++) {
 				Document d = getOne(s, "endorsements_loading",
 						new DbEntryWrapper(toRetrieve).getDocument());
+				if (d == null) {
+					schedule(s, EXPAND_TRUST_PATHS.with("depth", depth));
+					return;
+				}
 
 				IntroNanopub agentIntro = getAgentIntro(s, d.getString("endorsedNanopub"));
 				if (agentIntro != null) {
@@ -248,12 +249,8 @@ public enum Task implements Serializable {
 				} else {
 					set(s, "endorsements_loading", d.append("status", discarded.getValue()));
 				}
-
-				schedule(s, LOAD_DECLARATIONS.with("depth", depth));
-
-			} else {
-				schedule(s, EXPAND_TRUST_PATHS.with("depth", depth));
 			}
+			schedule(s, LOAD_DECLARATIONS.with("depth", depth));
 		}
 
 		// At the end of this step, the key declarations in the agent
@@ -284,73 +281,10 @@ public enum Task implements Serializable {
 
 			int depth = taskDoc.getInteger("depth");
 
-			Document d = getOne(s, "accounts_loading",
-					new Document("status", visited.getValue())
-						.append("depth", depth - 1)
-				);
-
-			if (d != null) {
-	
-				String agentId = d.getString("agent");
-				Validate.notNull(agentId);
-				String pubkeyHash = d.getString("pubkey");
-				Validate.notNull(pubkeyHash);
-
-				Document trustPath = collection("trustPaths_loading").find(s,
-						new Document("agent", agentId).append("pubkey", pubkeyHash).append("type", "extended").append("depth", depth - 1)
-					).sort(orderBy(descending("ratio"), ascending("sorthash"))).first();
-
-				if (trustPath == null) {
-					// Check it again in next iteration:
-					set(s, "accounts_loading", d.append("depth", depth));
-				} else {
-					// Only first matching trust path is considered
-
-					Map<String,Document> newPaths = new HashMap<>();
-					Map<String,Set<String>> pubkeySets = new HashMap<>();
-					String currentSetting = getValue(s, "setting", "current").toString();
-
-					MongoCursor<Document> edgeCursor = get(s, "trustEdges",
-							new Document("fromAgent", agentId)
-								.append("fromPubkey", pubkeyHash)
-								.append("invalidated", false)
-						);
-					while (edgeCursor.hasNext()) {
-						Document e = edgeCursor.next();
-
-						String agent = e.getString("toAgent");
-						Validate.notNull(agent);
-						String pubkey = e.getString("toPubkey");
-						Validate.notNull(pubkey);
-						String pathId = trustPath.getString("_id") + " " + agent + "|" + pubkey;
-						newPaths.put(pathId,
-								new Document("_id", pathId)
-									.append("sorthash", Utils.getHash(currentSetting + " " + pathId))
-									.append("agent", agent)
-									.append("pubkey", pubkey)
-									.append("depth", depth)
-									.append("type", "extended")
-							);
-						if (!pubkeySets.containsKey(agent)) pubkeySets.put(agent, new HashSet<>());
-						pubkeySets.get(agent).add(pubkey);
-					}
-					for (String pathId : newPaths.keySet()) {
-						Document pd = newPaths.get(pathId);
-						// first divide by agents; then for each agent, divide by number of pubkeys:
-						double newRatio = (trustPath.getDouble("ratio") * 0.9) / pubkeySets.size() / pubkeySets.get(pd.getString("agent")).size();
-						insert(s, "trustPaths_loading", pd.append("ratio", newRatio));
-					}
-					set(s, "trustPaths_loading", trustPath.append("type", "primary"));
-					set(s, "accounts_loading", d.append("status", expanded.getValue()));
-				}
-				schedule(s, EXPAND_TRUST_PATHS.with("depth", depth));
-	
-			} else {
-
-				schedule(s, LOAD_CORE.with("depth", depth).append("load-count", 0));
+			// All accounts of this depth are expanded at once:
+			TrustPathExpansion.expand(s, depth);
 
-			}
-			
+			schedule(s, LOAD_CORE.with("depth", depth).append("load-count", 0));
 		}
 
 		// At the end of this step, trust paths are updated to include
@@ -392,70 +326,50 @@ public enum Task implements Serializable {
 
 			int depth = taskDoc.getInteger("depth");
 			int loadCount = taskDoc.getInteger("load-count");
-
-			Document agentAccount = getOne(s, "accounts_loading",
-					new Document("depth", depth).append("status", seen.getValue()));
-			final String agentId;
-			final String pubkeyHash;
-			final Document trustPath;
-			if (agentAccount != null) {
-				agentId = agentAccount.getString("agent");
-				Validate.notNull(agentId);
-				pubkeyHash = agentAccount.getString("pubkey");
-				Validate.notNull(pubkeyHash);
-				trustPath = getOne(s, "trustPaths_loading",
-						new Document("depth", depth)
-							.append("agent", agentId)
-							.append("pubkey", pubkeyHash)
-					);
-			} else {
-				agentId = null;
-				pubkeyHash = null;
-				trustPath = null;
-			}
-
-			if (trustPath == null) {
-				schedule(s, FINISH_ITERATION.with("depth", depth).append("load-count", loadCount));
-			} else if (trustPath.getDouble("ratio") < MIN_TRUST_PATH_RATIO) {
-				set(s, "accounts_loading", agentAccount.append("status", skipped.getValue()));
-				Document d = new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH);
-				if (!has(s, "lists", d)) {
-					insert(s, "lists", d.append("status", encountered.getValue()));
-				}
-				schedule(s, LOAD_CORE.with("depth", depth).append("load-count", loadCount + 1));
-			} else {
-				// TODO check intro limit
-				Document introList = new Document()
-						.append("pubkey", pubkeyHash)
-						.append("type", INTRO_TYPE_HASH)
-						.append("status", loading.getValue());
-				if (!has(s, "lists", new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH))) {
-					insert(s, "lists", introList);
+			long startTime = System.currentTimeMillis();
+
+			for (int count = 0; !isBatchDone(count, startTime); count++) {
+				Document agentAccount = getOne(s, "accounts_loading",
+						new Document("depth", depth).append("status", seen.getValue()));
+				final String agentId;
+				final String pubkeyHash;
+				final Document trustPath;
+				if (agentAccount != null) {
+					agentId = agentAccount.getString("agent");
+					Validate.notNull(agentId);
+					pubkeyHash = agentAccount.getString("pubkey");
+					Validate.notNull(pubkeyHash);
+					trustPath = getOne(s, "trustPaths_loading",
+							new Document("depth", depth)
+								.append("agent", agentId)
+								.append("pubkey", pubkeyHash)
+						);
+				} else {
+					agentId = null;
+					pubkeyHash = null;
+					trustPath = null;
 				}
 
-				try (var stream = NanopubLoader.retrieveNanopubsFromPeers(INTRO_TYPE_HASH, pubkeyHash)) {
-					stream.forEach(m -> {
-						if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-						loadNanopub(s, m.getNanopub(), pubkeyHash, INTRO_TYPE);
-					});
-				}
+				if (trustPath == null) {
+					schedule(s, FINISH_ITERATION.with("depth", depth).append("load-count", loadCount));
+					return;
+				} else if (trustPath.getDouble("ratio") < MIN_TRUST_PATH_RATIO) {
+					addList(s, pubkeyHash, INTRO_TYPE_HASH, encountered);
+					loadCount++;
+					saveLoadCount(s, taskDoc, loadCount);
+					set(s, "accounts_loading", agentAccount.append("status", skipped.getValue()));
+				} else {
+					// TODO check intro limit
+					addList(s, pubkeyHash, INTRO_TYPE_HASH, loading);
 
-				set(s, "lists", introList.append("status", loaded.getValue()));
+					NanopubLoader.loadFromPeers(s, INTRO_TYPE, pubkeyHash, null);
 
-				// TODO check endorsement limit
-				Document endorseList = new Document()
-						.append("pubkey", pubkeyHash)
-						.append("type", ENDORSE_TYPE_HASH)
-						.append("status", loading.getValue());
-				if (!has(s, "lists", new Document("pubkey", pubkeyHash).append("type", ENDORSE_TYPE_HASH))) {
-					insert(s, "lists", endorseList);
-				}
+					setListStatus(s, pubkeyHash, INTRO_TYPE_HASH, loaded);
 
-				try (var stream = NanopubLoader.retrieveNanopubsFromPeers(ENDORSE_TYPE_HASH, pubkeyHash)) {
-					stream.forEach(m -> {
-						if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-						Nanopub nanopub = m.getNanopub();
-						loadNanopub(s, nanopub, pubkeyHash, ENDORSE_TYPE);
+					// TODO check endorsement limit
+					addList(s, pubkeyHash, ENDORSE_TYPE_HASH, loading);
+
+					NanopubLoader.loadFromPeers(s, ENDORSE_TYPE, pubkeyHash, nanopub -> {
 						String sourceNpId = TrustyUriUtils.getArtifactCode(nanopub.getUri().stringValue());
 						Validate.notNull(sourceNpId);
 						for (Statement st : nanopub.getAssertion()) {
@@ -476,19 +390,17 @@ public enum Task implements Serializable {
 							}
 						}
 					});
-				}
 
-				set(s, "lists", endorseList.append("status", loaded.getValue()));
+					setListStatus(s, pubkeyHash, ENDORSE_TYPE_HASH, loaded);
 
-				Document df = new Document("pubkey", pubkeyHash).append("type", "$");
-				if (!has(s, "lists", df)) insert(s, "lists",
-						df.append("status", encountered.getValue()));
+					addList(s, pubkeyHash, "$", encountered);
 
-				set(s, "accounts_loading", agentAccount.append("status", visited.getValue()));
-
-				schedule(s, LOAD_CORE.with("depth", depth).append("load-count", loadCount + 1));
+					loadCount++;
+					saveLoadCount(s, taskDoc, loadCount);
+					set(s, "accounts_loading", agentAccount.append("status", visited.getValue()));
+				}
 			}
-			
+			schedule(s, LOAD_CORE.with("depth", depth).append("load-count", loadCount));
 		}
 
 		// At the end of this step, we have added new endorsement
@@ -533,116 +445,41 @@ public enum Task implements Serializable {
 	CALCULATE_TRUST_SCORES {
 
 		// DB read from: accounts, trustPaths
-		// DB write to:  accounts
+		// DB write to:  accounts, agents
 
 		public void run(ClientSession s, Document taskDoc) {
 
-			Document d = getOne(s, "accounts_loading", new Document("status", expanded.getValue()));
+			// Also does what AGGREGATE_AGENTS and ASSIGN_PUBKEYS did one agent or pubkey at a time:
+			TrustScoring.run(s);
 
-			if (d == null) {
-				schedule(s, AGGREGATE_AGENTS);
-			} else {
-				double ratio = 0.0;
-				Map<String,Boolean> seenPathElements = new HashMap<>();
-				int pathCount = 0;
-				MongoCursor<Document> trustPaths = collection("trustPaths_loading").find(s,
-						new Document("agent", d.get("agent").toString()).append("pubkey", d.get("pubkey").toString())
-					).sort(orderBy(ascending("depth"), descending("ratio"), ascending("sorthash"))).cursor();
-				while (trustPaths.hasNext()) {
-					Document trustPath = trustPaths.next();
-					ratio += trustPath.getDouble("ratio");
-					boolean independentPath = true;
-					String[] pathElements = trustPath.getString("_id").split(" ");
-					// Iterate over path elements, ignoring first (root) and last (this agent/pubkey):
-					for (int i = 1 ; i < pathElements.length - 1 ; i++) {
-						String p = pathElements[i];
-						if (seenPathElements.containsKey(p)) {
-							independentPath = false;
-							break;
-						}
-						seenPathElements.put(p, true);
-					}
-					if (independentPath) pathCount += 1;
-				}
-				double rawQuota = GLOBAL_QUOTA * ratio;
-				int quota = (int) rawQuota;
-				if (rawQuota < MIN_USER_QUOTA) {
-					quota = MIN_USER_QUOTA;
-				} else if (rawQuota > MAX_USER_QUOTA) {
-					quota = MAX_USER_QUOTA;
-				}
-				set(s, "accounts_loading",
-						d.append("status", processed.getValue())
-							.append("ratio", ratio)
-							.append("pathCount", pathCount)
-							.append("quota", quota)
-					);
-				schedule(s, CALCULATE_TRUST_SCORES);
-			}
-			
+			schedule(s, DETERMINE_UPDATES);
 		}
 		
 	},
 
 	AGGREGATE_AGENTS {
 
-		// DB read from: accounts, agents
-		// DB write to:  accounts, agents
+		// Only still here for tasks scheduled before CALCULATE_TRUST_SCORES covered this step
 
 		public void run(ClientSession s, Document taskDoc) {
 
-			Document a = getOne(s, "accounts_loading", new Document("status", processed.getValue()));
-			if (a == null) {
-				schedule(s, ASSIGN_PUBKEYS);
-			} else {
-				Document agentId = new Document("agent", a.get("agent").toString()).append("status", processed.getValue());
-				int count = 0;
-				int pathCountSum = 0;
-				double totalRatio = 0.0d;
-				MongoCursor<Document> agentAccounts = collection("accounts_loading").find(s, agentId).cursor();
-				while (agentAccounts.hasNext()) {
-					Document d = agentAccounts.next();
-					count++;
-					pathCountSum += d.getInteger("pathCount");
-					totalRatio += d.getDouble("ratio");
-				}
-				collection("accounts_loading").updateMany(s, agentId, new Document("$set",
-						new DbEntryWrapper(aggregated).getDocument()));
-				insert(s, "agents_loading",
-						agentId.append("accountCount", count)
-							.append("avgPathCount", (double) pathCountSum / count)
-							.append("totalRatio", totalRatio)
-					);
-				schedule(s, AGGREGATE_AGENTS);
-			}
+			TrustScoring.aggregateAgents(s);
+			TrustScoring.assignPubkeys(s);
 
+			schedule(s, DETERMINE_UPDATES);
 		}
 		
 	},
 
 	ASSIGN_PUBKEYS {
 
-		// DB read from: accounts
-		// DB write to:  accounts
+		// Only still here for tasks scheduled before CALCULATE_TRUST_SCORES covered this step
 
 		public void run(ClientSession s, Document taskDoc) {
 
-			Document a = getOne(s, "accounts_loading", new DbEntryWrapper(aggregated).getDocument());
-			if (a == null) {
-				schedule(s, DETERMINE_UPDATES);
-			} else {
-				Document pubkeyId = new Document("pubkey", a.get("pubkey").toString());
-				if (collection("accounts_loading").countDocuments(s, pubkeyId) == 1) {
-					collection("accounts_loading").updateMany(s, pubkeyId,
-							new Document("$set", new DbEntryWrapper(approved).getDocument()));
-				} else {
-					// TODO At the moment all get marked as 'contested'; implement more nuanced algorithm
-					collection("accounts_loading").updateMany(s, pubkeyId, new Document("$set",
-							new DbEntryWrapper( contested).getDocument()));
-				}
-				schedule(s, ASSIGN_PUBKEYS);
-			}
+			TrustScoring.assignPubkeys(s);
 
+			schedule(s, DETERMINE_UPDATES);
 		}
 
 	},
@@ -751,8 +588,26 @@ public enum Task implements Serializable {
 				return;
 			}
 
-			Document a = getOne(s, "accounts", new DbEntryWrapper(toLoad).getDocument());
-			if (a == null) {
+			// The pubkeys are loaded by LOAD_PUBKEY tasks, which run in parallel; here we only hand them out:
+			long pending = tasks.countDocuments(s, eq("action", LOAD_PUBKEY.name()));
+			Set<String> pubkeys = new HashSet<>();
+			for (Document a : collection("accounts").find(s, new DbEntryWrapper(toLoad).getDocument())) {
+				if (pending >= PARALLEL_LOADS) break;
+				final String ph = a.getString("pubkey");
+				if (!pubkeys.add(ph)) continue;
+				if (ph.equals("$")) {
+					setListStatus(s, ph, "$", loaded);
+					collection("accounts").updateMany(s, and(eq("pubkey", ph), eq("status", toLoad.getValue())), new Document("$set", new Document("status", loaded.getValue())));
+				} else if (!has(s, "tasks", new Document("action", LOAD_PUBKEY.name()).append("pubkey", ph))) {
+					schedule(s, LOAD_PUBKEY.with("pubkey", ph));
+					pending++;
+				}
+			}
+
+			if (pending > 0) {
+				// New nanopubs are checked for while the full load is still going on:
+				schedule(s, CHECK_NEW.withDelay(1000));
+			} else if (!has(s, "accounts", new DbEntryWrapper(toLoad).getDocument())) {
 				System.err.println("Nothing to load");
 				if (status == coreReady) {
 					System.err.println("Full load finished");
@@ -761,28 +616,40 @@ public enum Task implements Serializable {
 				System.err.println("Scheduling optional loading checks");
 				schedule(s, CHECK_MORE_PUBKEYS.withDelay(100));
 			} else {
-				final String ph = a.getString("pubkey");
-				if (!ph.equals("$")) {
-					try (var stream = NanopubLoader.retrieveNanopubsFromPeers("$", ph)) {
-						long startTime = System.nanoTime();
-						AtomicLong loaded = new AtomicLong(0);
-						stream.forEach(m -> {
-							if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-							loadNanopub(s, m.getNanopub(), ph, "$");
-							loaded.incrementAndGet();
-						});
-						double timeSeconds = (System.nanoTime() - startTime) * 1e-9;
-						System.err.println("Loaded " + loaded.get() + " nanopubs in " + timeSeconds + "s, " +
-								String.format("%.2f", loaded.get() / timeSeconds) + " np/s");
-					}
-				}
+				schedule(s, LOAD_FULL.withDelay(100));
+			}
+		}
+
+		@Override
+		public boolean runAsTransaction() {
+			// TODO Make this a transaction once we connect to other Nanopub Registry instances:
+			return false;
+		}
+
+		@Override
+		public String getConflictGroup(Document taskDoc) {
+			return "loading";
+		}
 
-				Document l = getOne(s, "lists", new Document().append("pubkey", ph).append("type", "$"));
-				if (l != null) set(s, "lists", l.append("status", loaded.getValue()));
-				set(s, "accounts", a.append("status", loaded.getValue()));
+	},
 
-				schedule(s, LOAD_FULL.withDelay(100));
+	LOAD_PUBKEY {
+
+		public void run(ClientSession s, Document taskDoc) {
+			final String ph = taskDoc.getString("pubkey");
+			// The accounts collection is replaced by RELEASE_DATA, so the status of the list is what tells us whether
+			// an earlier run of this task has loaded the pubkey already:
+			if (has(s, "lists", new Document("pubkey", ph).append("type", "$").append("status", loaded.getValue()))) {
+				System.err.println("Already loaded: " + ph);
+			} else {
+				long startTime = System.nanoTime();
+				long loadedCount = NanopubLoader.loadFromPeers(s, "$", ph, null);
+				double timeSeconds = (System.nanoTime() - startTime) * 1e-9;
+				System.err.println("Loaded " + loadedCount + " nanopubs in " + timeSeconds + "s, " +
+						String.format("%.2f", loadedCount / timeSeconds) + " np/s");
+				setListStatus(s, ph, "$", loaded);
 			}
+			collection("accounts").updateMany(s, and(eq("pubkey", ph), eq("status", toLoad.getValue())), new Document("$set", new Document("status", loaded.getValue())));
 		}
 
 		@Override
@@ -791,6 +658,11 @@ public enum Task implements Serializable {
 			return false;
 		}
 
+		@Override
+		public String getConflictGroup(Document taskDoc) {
+			return "pubkey " + taskDoc.getString("pubkey");
+		}
+
 	},
 
 	CHECK_MORE_PUBKEYS {
@@ -800,15 +672,17 @@ public enum Task implements Serializable {
 			for (ApiResponseEntry e : resp.getData()) {
 				String pubkeyHash = e.get("pubkeyhash");
 				Validate.notNull(pubkeyHash);
-				Document d = new Document("pubkey", pubkeyHash).append("type", INTRO_TYPE_HASH);
-				if (!has(s, "lists", d)) {
-					insert(s, "lists", d.append("status", encountered.getValue()));
-				}
+				addList(s, pubkeyHash, INTRO_TYPE_HASH, encountered);
 			}
 
 			schedule(s, RUN_OPTIONAL_LOAD.withDelay(100));
 		}
-		
+
+		@Override
+		public String getConflictGroup(Document taskDoc) {
+			return "loading";
+		}
+
 	},
 
 	RUN_OPTIONAL_LOAD {
@@ -820,30 +694,13 @@ public enum Task implements Serializable {
 				Validate.notNull(pubkeyHash);
 				System.err.println("Optional core loading: " + pubkeyHash);
 
-				try (var stream = NanopubLoader.retrieveNanopubsFromPeers(INTRO_TYPE_HASH, pubkeyHash)) {
-					stream.forEach(m -> {
-						if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-						loadNanopub(s, m.getNanopub(), pubkeyHash, INTRO_TYPE);
-					});
-				}
-				set(s, "lists", di.append("status", loaded.getValue()));
-
-				try (var stream = NanopubLoader.retrieveNanopubsFromPeers(ENDORSE_TYPE_HASH, pubkeyHash)) {
-					stream.forEach(m -> {
-						if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-						loadNanopub(s, m.getNanopub(), pubkeyHash, ENDORSE_TYPE);
-					});
-				}
+				NanopubLoader.loadFromPeers(s, INTRO_TYPE, pubkeyHash, null);
+				setListStatus(s, pubkeyHash, INTRO_TYPE_HASH, loaded);
 
-				Document de = new Document("pubkey", pubkeyHash).append("type", ENDORSE_TYPE_HASH);
-				if (has(s, "lists", de)) {
-					set(s, "lists", de.append("status", loaded.getValue()));
-				} else {
-					insert(s, "lists", de.append("status", loaded.getValue()));
-				}
+				NanopubLoader.loadFromPeers(s, ENDORSE_TYPE, pubkeyHash, null);
+				setListStatus(s, pubkeyHash, ENDORSE_TYPE_HASH, loaded);
 
-				Document df = new Document("pubkey", pubkeyHash).append("type", "$");
-				if (!has(s, "lists", df)) insert(s, "lists", df.append("status", encountered.getValue()));
+				addList(s, pubkeyHash, "$", encountered);
 
 				schedule(s, CHECK_NEW.withDelay(100));
 				return;
@@ -854,19 +711,19 @@ public enum Task implements Serializable {
 				final String pubkeyHash = df.getString("pubkey");
 				System.err.println("Optional full loading: " + pubkeyHash);
 
-				try (var stream = NanopubLoader.retrieveNanopubsFromPeers("$", pubkeyHash)) {
-					stream.forEach(m -> {
-						if (!m.isSuccess()) throw new RuntimeException("Failed to download nanopub; aborting task...");
-						loadNanopub(s, m.getNanopub(), pubkeyHash, "$");
-					});
-				}
+				NanopubLoader.loadFromPeers(s, "$", pubkeyHash, null);
 
-				set(s, "lists", df.append("status", loaded.getValue()));
+				setListStatus(s, pubkeyHash, "$", loaded);
 			}
 
 			schedule(s, CHECK_NEW.withDelay(100));
 		}
-		
+
+		@Override
+		public String getConflictGroup(Document taskDoc) {
+			return "loading";
+		}
+
 	},
 
 	CHECK_NEW {
@@ -879,6 +736,11 @@ public enum Task implements Serializable {
 			schedule(s, LOAD_FULL.withDelay(100));
 		}
 
+		@Override
+		public String getConflictGroup(Document taskDoc) {
+			return "loading";
+		}
+
 	};
 
 	public abstract void run(ClientSession s, Document taskDoc) throws Exception;
@@ -887,6 +749,17 @@ public enum Task implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Tasks of the same conflict group never run at the same time. The tasks that build the trust state form one
+	 * group, as each of them continues from where the previous one left off. The optional loading checks form
+	 * another, and each LOAD_PUBKEY task is in a group of its own pubkey, so the pubkeys of a full load are loaded in
+	 * parallel. Where tasks of different groups write to the same lists and accounts, they do so with single
+	 * atomic writes (see {@link RegistryDB#addList}).
+	 */
+	public String getConflictGroup(Document taskDoc) {
+		return "trust-state";
+	}
+
 	private Document doc() {
 		return withDelay(0l);
 	}
@@ -905,58 +778,134 @@ public enum Task implements Serializable {
 	private static final int MAX_TRUST_PATH_DEPTH = 10;
 	private static final double MIN_TRUST_PATH_RATIO = 0.00000001;
 	//private static final double MIN_TRUST_PATH_RATIO = 0.01; // For testing
-	private static final int GLOBAL_QUOTA = 100000000;
-	private static final int MIN_USER_QUOTA = 100;
-	private static final int MAX_USER_QUOTA = 10000;
+	static final int GLOBAL_QUOTA = 100000000;
+	static final int MIN_USER_QUOTA = 100;
+	static final int MAX_USER_QUOTA = 10000;
 
 	private static MongoCollection<Document> tasks = collection("tasks");
 
+	private static final long RETRY_DELAY = 1000;
+
+	private static final int WORKER_COUNT = Integer.parseInt(Utils.getEnv("REGISTRY_TASK_WORKERS", "4"));
+
+	// LOAD_FULL keeps up to this many LOAD_PUBKEY tasks pending, leaving workers free for the other tasks:
+	private static final int PARALLEL_LOADS = Integer.parseInt(Utils.getEnv("REGISTRY_PARALLEL_LOADS", "" + Math.max(1, WORKER_COUNT - 2)));
+
+	// Tasks that work through many items (endorsements, accounts) process up to this many of them per run:
+	private static final int BATCH_SIZE = Integer.parseInt(Utils.getEnv("REGISTRY_TASK_BATCH_SIZE", "100"));
+	// ... and start no new item when they have been running for this many milliseconds:
+	private static final long BATCH_TIME = Long.parseLong(Utils.getEnv("REGISTRY_TASK_BATCH_TIME", "1000"));
+
+	private static boolean isBatchDone(int count, long startTime) {
+		return count >= BATCH_SIZE || (count > 0 && System.currentTimeMillis() - startTime >= BATCH_TIME);
+	}
+
 	/**
-	 * The super important base entry point!
+	 * Stores the load count reached so far on the task document. The writes of each account are not undone when
+	 * a later one fails, so a retried LOAD_CORE task has to start from this count. It is stored before the status
+	 * of the account is changed, so a failure in between can only make it too high, which still tells
+	 * FINISH_ITERATION correctly whether anything was loaded at this depth.
+	 */
+	private static void saveLoadCount(ClientSession mongoSession, Document taskDoc, int loadCount) {
+		tasks.updateOne(mongoSession, eq("_id", taskDoc.get("_id")), new Document("$set", new Document("load-count", loadCount)));
+	}
+
+	/**
+	 * The super important base entry point! Claims the due tasks and hands them to the workers, and otherwise
+	 * sleeps until the next one is due (see {@link TaskScheduler}). Tasks in the same conflict group never run at
+	 * the same time (see {@link TaskLeases}).
 	 */
 	static void runTasks() {
 		try (ClientSession s = RegistryDB.getClient().startSession()) {
 			if (!RegistryDB.isInitialized(s)) {
 				schedule(s, INIT_DB); // does not yet execute, only schedules
 			}
+		}
+		TaskLeases.start();
+		ExecutorService workers = Executors.newFixedThreadPool(WORKER_COUNT);
+		Semaphore freeWorkers = new Semaphore(WORKER_COUNT);
 
-			while (true) {
-				FindIterable<Document> taskResult = tasks.find(s).sort(ascending("not-before"));
-				Document taskDoc = taskResult.first();
-				long sleepTime = 10;
-				if (taskDoc != null && taskDoc.getLong("not-before") < System.currentTimeMillis()) {
-					Task task = valueOf(taskDoc.getString("action"));
-					System.err.println("Running task: " + task.name());
-					if (task.runAsTransaction()) {
+		while (true) {
+			try {
+				freeWorkers.acquire();
+				// Everything scheduled so far is covered by the claim below:
+				TaskScheduler.clear();
+				Document taskDoc = TaskLeases.claim();
+				if (taskDoc != null) {
+					workers.execute(() -> {
 						try {
-							s.startTransaction();
-							System.err.println("Transaction started");
-							runTask(task, taskDoc);
-							s.commitTransaction();
-							System.err.println("Transaction committed");
-						} catch (Exception ex) {
-							System.err.println("Aborting transaction");
-							ex.printStackTrace();
-							abortTransaction(s, ex.getMessage());
-							System.err.println("Transaction aborted");
-							sleepTime = 1000;
+							runClaimedTask(taskDoc);
 						} finally {
-							cleanTransactionWithRetry(s);
+							freeWorkers.release();
+							// The group of the task is free again:
+							TaskScheduler.wakeUp();
 						}
-					} else {
-						try {
-							runTask(task, taskDoc);
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
-					}
+					});
+					continue;
 				}
+				freeWorkers.release();
+				Long notBefore = TaskLeases.getNextNotBefore();
+				if (notBefore == null || notBefore < System.currentTimeMillis()) {
+					// Nothing to do, or the due tasks are blocked by their groups:
+					TaskScheduler.awaitNext(Long.MAX_VALUE);
+				} else {
+					TaskScheduler.awaitNext(notBefore + 1);
+				}
+			} catch (InterruptedException ex) {
+				ex.printStackTrace();
+			} catch (Exception ex) {
+				System.err.println("Claiming task failed: " + ex.getMessage());
+				ex.printStackTrace();
 				try {
-					Thread.sleep(sleepTime);
-				} catch (InterruptedException ex) {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException iex) {
+					iex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static void runClaimedTask(Document taskDoc) {
+		Task task = valueOf(taskDoc.getString("action"));
+		System.err.println("Running task: " + task.name());
+		boolean failed = false;
+		try (ClientSession s = RegistryDB.getClient().startSession()) {
+			if (task.runAsTransaction()) {
+				try {
+					s.startTransaction();
+					System.err.println("Transaction started");
+					runTask(task, taskDoc);
+					s.commitTransaction();
+					System.err.println("Transaction committed");
+				} catch (Exception ex) {
+					System.err.println("Aborting transaction");
 					ex.printStackTrace();
+					abortTransaction(s, ex.getMessage());
+					System.err.println("Transaction aborted");
+					failed = true;
+				} finally {
+					cleanTransactionWithRetry(s);
+				}
+			} else {
+				try {
+					runTask(task, taskDoc);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					failed = true;
 				}
 			}
+		} catch (Throwable ex) {
+			// Errors too, as the lease and the group of the task have to be released in any case:
+			ex.printStackTrace();
+			failed = true;
+		}
+		// Tasks change the server status and other serverInfo values:
+		RegistryState.refresh(false);
+		if (failed) {
+			// The task is still there and is retried after a pause:
+			TaskLeases.failed(taskDoc, RETRY_DELAY);
+		} else {
+			TaskLeases.completed(taskDoc);
 		}
 	}
 
@@ -1042,6 +991,7 @@ public enum Task implements Serializable {
 	private static void schedule(ClientSession mongoSession, Document taskDoc) {
 		System.err.println("Scheduling task: " + taskDoc.get("action"));
 		tasks.insertOne(mongoSession, taskDoc);
+		TaskScheduler.scheduled(taskDoc.getLong("not-before"));
 	}
 
 }
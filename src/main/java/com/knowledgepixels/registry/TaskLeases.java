@@ -0,0 +1,164 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Claims of tasks, so several workers can run tasks at the same time. A task is claimed by setting a lease on
+ * its document in the tasks collection, and its conflict group (see {@link Task#getConflictGroup(Document)}) is locked
+ * with a lease in the taskLocks collection, so no two tasks of the same group run at the same time.
+ *
+ * The leases of running tasks are renewed in the background. Leases of workers that crashed are not renewed
+ * anymore and expire after LEASE_TIME milliseconds, after which the task can be claimed again.
+ */
+public class TaskLeases {
+
+	private TaskLeases() {}  // no instances allowed
+
+	private static final long LEASE_TIME = Long.parseLong(Utils.getEnv("REGISTRY_TASK_LEASE_TIME", "60000"));
+
+	// Number of due tasks that are looked at when trying to claim one whose group is free:
+	private static final int CLAIM_CANDIDATES = 20;
+
+	// Identifies the leases of this process:
+	private static final String OWNER = UUID.randomUUID().toString();
+
+	private static final MongoCollection<Document> tasks = collection("tasks");
+	private static final MongoCollection<Document> taskLocks = collection("taskLocks");
+
+	// Tasks and groups running in this process, which are skipped even if their leases expired in the meantime:
+	private static final Set<Object> runningTasks = ConcurrentHashMap.newKeySet();
+	private static final Set<String> runningGroups = ConcurrentHashMap.newKeySet();
+
+	private static final FindOneAndUpdateOptions returnClaimed = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+
+	/**
+	 * Starts the renewal of the leases of this process.
+	 */
+	public static void start() {
+		Thread t = new Thread(TaskLeases::renewLeases, "task-leases");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static Bson unleased(long now) {
+		return or(exists("lease-until", false), lt("lease-until", now));
+	}
+
+	/**
+	 * Claims the due task that is first in line and whose conflict group is free.
+	 *
+	 * @return The task document, or null if there is no such task
+	 */
+	public static Document claim() {
+		long now = System.currentTimeMillis();
+		Bson leased = combine(set("lease-owner", OWNER), set("lease-until", now + LEASE_TIME));
+		for (Document candidate : tasks.find(and(lt("not-before", now), unleased(now))).sort(ascending("not-before")).limit(CLAIM_CANDIDATES)) {
+			Object id = candidate.get("_id");
+			String group = Task.valueOf(candidate.getString("action")).getConflictGroup(candidate);
+			if (runningTasks.contains(id) || !runningGroups.add(group)) continue;
+			if (!lockGroup(group, now)) {
+				runningGroups.remove(group);
+				continue;
+			}
+			Document taskDoc = tasks.findOneAndUpdate(and(eq("_id", id), unleased(now)), leased, returnClaimed);
+			if (taskDoc != null) {
+				runningTasks.add(id);
+				return taskDoc;
+			}
+			unlockGroup(group);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the earliest not-before time of the tasks that are not claimed, or null if there are none.
+	 */
+	public static Long getNextNotBefore() {
+		Document taskDoc = tasks.find(unleased(System.currentTimeMillis())).sort(ascending("not-before")).first();
+		if (taskDoc == null) return null;
+		return taskDoc.getLong("not-before");
+	}
+
+	/**
+	 * To be called after the given claimed task was run and removed from the tasks collection.
+	 */
+	public static void completed(Document taskDoc) {
+		runningTasks.remove(taskDoc.get("_id"));
+		unlockGroup(Task.valueOf(taskDoc.getString("action")).getConflictGroup(taskDoc));
+	}
+
+	/**
+	 * To be called after the given claimed task failed. It is released, to be retried after the given delay.
+	 */
+	public static void failed(Document taskDoc, long retryDelay) {
+		try {
+			tasks.updateOne(and(eq("_id", taskDoc.get("_id")), eq("lease-owner", OWNER)), combine(
+					set("not-before", System.currentTimeMillis() + retryDelay),
+					unset("lease-owner"),
+					unset("lease-until")
+				));
+		} finally {
+			completed(taskDoc);
+		}
+	}
+
+	private static boolean lockGroup(String group, long now) {
+		try {
+			// If the group is locked, the filter doesn't match and the upsert fails on the existing ID:
+			taskLocks.updateOne(and(eq("_id", group), lt("lease-until", now)),
+					combine(set("lease-owner", OWNER), set("lease-until", now + LEASE_TIME)),
+					new UpdateOptions().upsert(true));
+			return true;
+		} catch (MongoWriteException ex) {
+			if (ex.getError().getCode() != 11000) throw ex;
+			return false;
+		}
+	}
+
+	private static void unlockGroup(String group) {
+		try {
+			taskLocks.deleteOne(and(eq("_id", group), eq("lease-owner", OWNER)));
+		} finally {
+			runningGroups.remove(group);
+		}
+	}
+
+	private static void renewLeases() {
+		while (true) {
+			try {
+				Thread.sleep(LEASE_TIME / 3);
+				if (runningGroups.isEmpty()) continue;
+				Bson renewed = set("lease-until", System.currentTimeMillis() + LEASE_TIME);
+				tasks.updateMany(eq("lease-owner", OWNER), renewed);
+				taskLocks.updateMany(eq("lease-owner", OWNER), renewed);
+			} catch (InterruptedException ex) {
+				return;
+			} catch (Exception ex) {
+				System.err.println("Renewing task leases failed: " + ex.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.knowledgepixels.registry;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wake-up times of the task loop, so it can sleep until the next task is due instead of polling the tasks
+ * collection. The collection stays the authority on which task runs next; this only decides when to look at it
+ * again. Newly scheduled tasks wake the loop up at their not-before time, and the loop also wakes up every
+ * RECONCILE_INTERVAL milliseconds in case tasks got into the collection by other means.
+ */
+public class TaskScheduler {
+
+	private TaskScheduler() {}  // no instances allowed
+
+	static final long RECONCILE_INTERVAL = Long.parseLong(Utils.getEnv("REGISTRY_TASK_RECONCILE_INTERVAL", "60000"));
+
+	private static class WakeUp implements Delayed {
+
+		private final long time;
+
+		WakeUp(long time) {
+			this.time = time;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(time, ((WakeUp) other).time);
+		}
+
+	}
+
+	private static final DelayQueue<WakeUp> queue = new DelayQueue<>();
+
+	/**
+	 * To be called after a task with the given not-before time was inserted into the tasks collection.
+	 */
+	public static void scheduled(long notBefore) {
+		queue.add(new WakeUp(notBefore));
+	}
+
+	/**
+	 * Wakes the task loop up right away, e.g. when a worker became free.
+	 */
+	public static void wakeUp() {
+		queue.add(new WakeUp(0));
+	}
+
+	/**
+	 * Drops all wake-up times. To be called right before the loop reads the next task from the collection, which
+	 * covers all tasks scheduled so far.
+	 */
+	static void clear() {
+		queue.clear();
+	}
+
+	/**
+	 * Blocks until the given time, or until an earlier task is scheduled, whatever comes first. The waiting time
+	 * is capped at RECONCILE_INTERVAL.
+	 */
+	static void awaitNext(long time) throws InterruptedException {
+		queue.add(new WakeUp(Math.min(time, System.currentTimeMillis() + RECONCILE_INTERVAL)));
+		queue.take();
+	}
+
+}
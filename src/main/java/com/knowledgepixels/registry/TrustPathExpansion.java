@@ -0,0 +1,223 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.EntryStatus.expanded;
+import static com.knowledgepixels.registry.EntryStatus.visited;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.knowledgepixels.registry.RegistryDB.getValue;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+import org.bson.Document;
+
+import com.google.common.collect.Lists;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Expands the trust paths of all visited accounts of one depth at once (see {@link Task#EXPAND_TRUST_PATHS}).
+ * The trust edges starting at these accounts are loaded into an adjacency structure over interned account IDs,
+ * the new paths are calculated in memory, and all results are written with bulk writes.
+ *
+ * The results are the same as when the accounts are expanded one by one: for each account, only its best
+ * extended path of the previous depth (highest ratio, then lowest sorthash) is extended along each of its
+ * distinct non-invalidated trust edges, and the ratio is divided first by the number of trusted agents and then
+ * by the number of their pubkeys.
+ */
+public class TrustPathExpansion {
+
+	private TrustPathExpansion() {}  // no instances allowed
+
+	private static final int WRITE_BATCH_SIZE = 1000;
+
+	/**
+	 * Account nodes identified by agent and pubkey, interned as consecutive int IDs.
+	 */
+	private static class Nodes {
+
+		private final Map<String,Integer> ids = new HashMap<>();
+		private final Map<String,Integer> agentIds = new HashMap<>();
+		private final List<String> agents = new ArrayList<>();
+		private final List<String> pubkeys = new ArrayList<>();
+		private int[] agentOf = new int[16];
+
+		int intern(String agent, String pubkey) {
+			Integer id = ids.get(agent + "|" + pubkey);
+			if (id != null) return id;
+			id = agents.size();
+			ids.put(agent + "|" + pubkey, id);
+			agents.add(agent);
+			pubkeys.add(pubkey);
+			if (id == agentOf.length) agentOf = Arrays.copyOf(agentOf, 2 * id);
+			agentOf[id] = agentIds.computeIfAbsent(agent, a -> agentIds.size());
+			return id;
+		}
+
+		int size() {
+			return agents.size();
+		}
+
+		int agentCount() {
+			return agentIds.size();
+		}
+
+	}
+
+	/**
+	 * Expands the trust paths of the visited accounts of depth - 1 to the given depth. Accounts without an
+	 * extended trust path are moved to the given depth, to be checked again in the next iteration.
+	 */
+	public static void expand(ClientSession s, int depth) {
+		String currentSetting = getValue(s, "setting", "current").toString();
+		Nodes nodes = new Nodes();
+
+		// Only the best path of each account is extended:
+		Map<Integer,Document> bestPaths = new HashMap<>();
+		for (Document p : collection("trustPaths_loading").find(s, and(eq("type", "extended"), eq("depth", depth - 1)))
+				.projection(include("_id", "agent", "pubkey", "ratio", "sorthash"))) {
+			int id = nodes.intern(p.getString("agent"), p.getString("pubkey"));
+			Document best = bestPaths.get(id);
+			if (best == null || isBetterPath(p, best)) bestPaths.put(id, p);
+		}
+
+		List<Object> expandedAccounts = new ArrayList<>();
+		List<Object> postponedAccounts = new ArrayList<>();
+		// Account nodes to be expanded, in the order of the accounts:
+		Set<Integer> frontier = new LinkedHashSet<>();
+		Set<String> frontierPubkeys = new LinkedHashSet<>();
+		for (Document d : collection("accounts_loading").find(s, and(eq("status", visited.getValue()), eq("depth", depth - 1)))
+				.projection(include("_id", "agent", "pubkey"))) {
+			String agentId = d.getString("agent");
+			Validate.notNull(agentId);
+			String pubkeyHash = d.getString("pubkey");
+			Validate.notNull(pubkeyHash);
+			int id = nodes.intern(agentId, pubkeyHash);
+			if (bestPaths.containsKey(id)) {
+				expandedAccounts.add(d.get("_id"));
+				frontier.add(id);
+				frontierPubkeys.add(pubkeyHash);
+			} else {
+				// Check it again in next iteration:
+				postponedAccounts.add(d.get("_id"));
+			}
+		}
+
+		// Trust edges from the frontier, as arrays of node IDs:
+		int edgeCount = 0;
+		int[] edgeFrom = new int[16];
+		int[] edgeTo = new int[16];
+		for (List<String> pubkeyBatch : Lists.partition(new ArrayList<>(frontierPubkeys), WRITE_BATCH_SIZE)) {
+			for (Document e : collection("trustEdges").find(s, and(in("fromPubkey", pubkeyBatch), eq("invalidated", false)))
+					.projection(include("fromAgent", "fromPubkey", "toAgent", "toPubkey"))) {
+				int from = nodes.intern(e.getString("fromAgent"), e.getString("fromPubkey"));
+				if (!frontier.contains(from)) continue;
+				String agent = e.getString("toAgent");
+				Validate.notNull(agent);
+				String pubkey = e.getString("toPubkey");
+				Validate.notNull(pubkey);
+				if (edgeCount == edgeFrom.length) {
+					edgeFrom = Arrays.copyOf(edgeFrom, 2 * edgeCount);
+					edgeTo = Arrays.copyOf(edgeTo, 2 * edgeCount);
+				}
+				edgeFrom[edgeCount] = from;
+				edgeTo[edgeCount] = nodes.intern(agent, pubkey);
+				edgeCount++;
+			}
+		}
+
+		// Adjacency in compressed form: the targets of node n are adjacency[offsets[n]] to adjacency[offsets[n + 1] - 1]
+		int nodeCount = nodes.size();
+		int[] offsets = new int[nodeCount + 1];
+		for (int i = 0; i < edgeCount; i++) {
+			offsets[edgeFrom[i] + 1]++;
+		}
+		for (int n = 0; n < nodeCount; n++) {
+			offsets[n + 1] += offsets[n];
+		}
+		int[] adjacency = new int[edgeCount];
+		int[] fill = Arrays.copyOf(offsets, nodeCount);
+		for (int i = 0; i < edgeCount; i++) {
+			adjacency[fill[edgeFrom[i]]++] = edgeTo[i];
+		}
+
+		// Per-expansion markers, set to the expanded node to avoid clearing them each time:
+		int[] targetSeen = new int[nodeCount];
+		Arrays.fill(targetSeen, -1);
+		int[] agentSeen = new int[nodes.agentCount()];
+		Arrays.fill(agentSeen, -1);
+		int[] agentPubkeyCount = new int[nodes.agentCount()];
+
+		List<InsertOneModel<Document>> newPaths = new ArrayList<>();
+		List<Object> primaryPaths = new ArrayList<>();
+		int[] targets = new int[16];
+		for (int from : frontier) {
+			Document trustPath = bestPaths.get(from);
+			int targetCount = 0;
+			int agentCount = 0;
+			for (int i = offsets[from]; i < offsets[from + 1]; i++) {
+				int to = adjacency[i];
+				// Several edges (from different sources) can lead to the same account:
+				if (targetSeen[to] == from) continue;
+				targetSeen[to] = from;
+				int agent = nodes.agentOf[to];
+				if (agentSeen[agent] != from) {
+					agentSeen[agent] = from;
+					agentPubkeyCount[agent] = 0;
+					agentCount++;
+				}
+				agentPubkeyCount[agent]++;
+				if (targetCount == targets.length) targets = Arrays.copyOf(targets, 2 * targetCount);
+				targets[targetCount++] = to;
+			}
+			for (int t = 0; t < targetCount; t++) {
+				int to = targets[t];
+				String agent = nodes.agents.get(to);
+				String pubkey = nodes.pubkeys.get(to);
+				String pathId = trustPath.getString("_id") + " " + agent + "|" + pubkey;
+				// first divide by agents; then for each agent, divide by number of pubkeys:
+				double newRatio = (trustPath.getDouble("ratio") * 0.9) / agentCount / agentPubkeyCount[nodes.agentOf[to]];
+				newPaths.add(new InsertOneModel<>(new Document("_id", pathId)
+						.append("sorthash", Utils.getHash(currentSetting + " " + pathId))
+						.append("agent", agent)
+						.append("pubkey", pubkey)
+						.append("depth", depth)
+						.append("type", "extended")
+						.append("ratio", newRatio)));
+			}
+			primaryPaths.add(trustPath.get("_id"));
+		}
+
+		// Paths already there from an earlier attempt are skipped:
+		RegistryDB.bulkInsertIgnoringDuplicates(s, "trustPaths_loading", newPaths, "_id");
+		for (List<Object> ids : Lists.partition(primaryPaths, WRITE_BATCH_SIZE)) {
+			collection("trustPaths_loading").updateMany(s, in("_id", ids), Updates.set("type", "primary"));
+		}
+		for (List<Object> ids : Lists.partition(expandedAccounts, WRITE_BATCH_SIZE)) {
+			collection("accounts_loading").updateMany(s, in("_id", ids), Updates.set("status", expanded.getValue()));
+		}
+		for (List<Object> ids : Lists.partition(postponedAccounts, WRITE_BATCH_SIZE)) {
+			collection("accounts_loading").updateMany(s, in("_id", ids), Updates.set("depth", depth));
+		}
+		System.err.println("Expanded " + frontier.size() + " accounts to " + newPaths.size() + " trust paths at depth " + depth);
+	}
+
+	// Same order as the sort by descending ratio and ascending sorthash:
+	private static boolean isBetterPath(Document p, Document other) {
+		double ratio = p.getDouble("ratio");
+		double otherRatio = other.getDouble("ratio");
+		if (ratio != otherRatio) return ratio > otherRatio;
+		return p.getString("sorthash").compareTo(other.getString("sorthash")) < 0;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.knowledgepixels.registry;
+
+import static com.knowledgepixels.registry.EntryStatus.aggregated;
+import static com.knowledgepixels.registry.EntryStatus.approved;
+import static com.knowledgepixels.registry.EntryStatus.contested;
+import static com.knowledgepixels.registry.EntryStatus.expanded;
+import static com.knowledgepixels.registry.EntryStatus.processed;
+import static com.knowledgepixels.registry.RegistryDB.collection;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.google.common.collect.Lists;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * The steps after the trust paths are complete: the trust scores of the accounts, the aggregation per agent,
+ * and the assignment of the pubkeys. Each step reads its input with one query, does the calculations in memory,
+ * and writes the results with bulk writes. Like the tasks that did these steps one account at a time before,
+ * each step picks up the accounts by their status, so a step that failed can simply be run again.
+ *
+ * The sums are calculated in the same order as before, so the results are identical.
+ */
+public class TrustScoring {
+
+	private TrustScoring() {}  // no instances allowed
+
+	private static final int WRITE_BATCH_SIZE = 1000;
+	private static final BulkWriteOptions unorderedBulkWrite = new BulkWriteOptions().ordered(false);
+
+	// Same order as the sort by ascending depth, descending ratio, and ascending sorthash:
+	private static final Comparator<Document> pathOrder = Comparator
+			.<Document>comparingInt(p -> p.getInteger("depth"))
+			.thenComparing((p1, p2) -> Double.compare(p2.getDouble("ratio"), p1.getDouble("ratio")))
+			.thenComparing(p -> p.getString("sorthash"));
+
+	private static String getAccountKey(Document d) {
+		return d.get("agent").toString() + "|" + d.get("pubkey").toString();
+	}
+
+	/**
+	 * Runs all three steps.
+	 */
+	public static void run(ClientSession s) {
+		calculateTrustScores(s);
+		aggregateAgents(s);
+		assignPubkeys(s);
+	}
+
+	/**
+	 * Calculates ratio, number of independent paths and quota of the expanded accounts from their trust paths,
+	 * and sets them to processed.
+	 */
+	public static void calculateTrustScores(ClientSession s) {
+		Map<String,Document> accounts = new LinkedHashMap<>();
+		for (Document d : collection("accounts_loading").find(s, new DbEntryWrapper(expanded).getDocument())) {
+			accounts.put(getAccountKey(d), d);
+		}
+		if (accounts.isEmpty()) return;
+
+		Map<String,List<Document>> paths = new HashMap<>();
+		for (Document p : collection("trustPaths_loading").find(s).projection(include("_id", "agent", "pubkey", "depth", "ratio", "sorthash"))) {
+			String key = getAccountKey(p);
+			if (!accounts.containsKey(key)) continue;
+			paths.computeIfAbsent(key, k -> new ArrayList<>()).add(p);
+		}
+
+		List<WriteModel<Document>> writes = new ArrayList<>();
+		for (Map.Entry<String,Document> e : accounts.entrySet()) {
+			List<Document> accountPaths = paths.getOrDefault(e.getKey(), new ArrayList<>());
+			accountPaths.sort(pathOrder);
+			double ratio = 0.0;
+			Set<String> seenPathElements = new HashSet<>();
+			int pathCount = 0;
+			for (Document trustPath : accountPaths) {
+				ratio += trustPath.getDouble("ratio");
+				boolean independentPath = true;
+				String[] pathElements = trustPath.getString("_id").split(" ");
+				// Iterate over path elements, ignoring first (root) and last (this agent/pubkey):
+				for (int i = 1 ; i < pathElements.length - 1 ; i++) {
+					if (!seenPathElements.add(pathElements[i])) {
+						independentPath = false;
+						break;
+					}
+				}
+				if (independentPath) pathCount += 1;
+			}
+			double rawQuota = Task.GLOBAL_QUOTA * ratio;
+			int quota = (int) rawQuota;
+			if (rawQuota < Task.MIN_USER_QUOTA) {
+				quota = Task.MIN_USER_QUOTA;
+			} else if (rawQuota > Task.MAX_USER_QUOTA) {
+				quota = Task.MAX_USER_QUOTA;
+			}
+			writes.add(new UpdateOneModel<>(eq("_id", e.getValue().get("_id")), Updates.combine(
+					Updates.set("status", processed.getValue()),
+					Updates.set("ratio", ratio),
+					Updates.set("pathCount", pathCount),
+					Updates.set("quota", quota)
+				)));
+		}
+		collection("accounts_loading").bulkWrite(s, writes, unorderedBulkWrite);
+		System.err.println("Calculated trust scores of " + accounts.size() + " accounts");
+	}
+
+	/**
+	 * Adds an entry to agents_loading for each agent of the processed accounts, and sets these accounts to
+	 * aggregated.
+	 */
+	public static void aggregateAgents(ClientSession s) {
+		// Accounts per agent, in the same order as when they are queried per agent:
+		Map<String,List<Document>> agentAccounts = new LinkedHashMap<>();
+		for (Document d : collection("accounts_loading").find(s, new DbEntryWrapper(processed).getDocument())
+				.projection(include("_id", "agent", "pathCount", "ratio"))) {
+			agentAccounts.computeIfAbsent(d.get("agent").toString(), k -> new ArrayList<>()).add(d);
+		}
+		if (agentAccounts.isEmpty()) return;
+
+		List<InsertOneModel<Document>> agentWrites = new ArrayList<>();
+		List<Object> accountIds = new ArrayList<>();
+		for (Map.Entry<String,List<Document>> e : agentAccounts.entrySet()) {
+			int count = 0;
+			int pathCountSum = 0;
+			double totalRatio = 0.0d;
+			for (Document d : e.getValue()) {
+				count++;
+				pathCountSum += d.getInteger("pathCount");
+				totalRatio += d.getDouble("ratio");
+				accountIds.add(d.get("_id"));
+			}
+			agentWrites.add(new InsertOneModel<>(new Document("agent", e.getKey())
+					.append("status", processed.getValue())
+					.append("accountCount", count)
+					.append("avgPathCount", (double) pathCountSum / count)
+					.append("totalRatio", totalRatio)));
+		}
+		// Agents already there from an earlier attempt are skipped:
+		RegistryDB.bulkInsertIgnoringDuplicates(s, "agents_loading", agentWrites, "agent");
+		for (List<Object> ids : Lists.partition(accountIds, WRITE_BATCH_SIZE)) {
+			collection("accounts_loading").updateMany(s, in("_id", ids), Updates.set("status", aggregated.getValue()));
+		}
+		System.err.println("Aggregated " + agentAccounts.size() + " agents");
+	}
+
+	/**
+	 * Sets all accounts with the pubkey of an aggregated account to approved if that pubkey belongs to only one
+	 * account, and to contested otherwise.
+	 */
+	public static void assignPubkeys(ClientSession s) {
+		Set<String> pubkeys = new LinkedHashSet<>();
+		for (Document d : collection("accounts_loading").find(s, new DbEntryWrapper(aggregated).getDocument()).projection(include("pubkey"))) {
+			pubkeys.add(d.get("pubkey").toString());
+		}
+		if (pubkeys.isEmpty()) return;
+
+		// Accounts of any status count here:
+		Map<String,Integer> accountCounts = new HashMap<>();
+		for (Document d : collection("accounts_loading").find(s).projection(include("pubkey"))) {
+			accountCounts.merge(d.get("pubkey").toString(), 1, Integer::sum);
+		}
+		List<String> approvedPubkeys = new ArrayList<>();
+		List<String> contestedPubkeys = new ArrayList<>();
+		for (String pubkey : pubkeys) {
+			if (accountCounts.get(pubkey) == 1) {
+				approvedPubkeys.add(pubkey);
+			} else {
+				// TODO At the moment all get marked as 'contested'; implement more nuanced algorithm
+				contestedPubkeys.add(pubkey);
+			}
+		}
+		for (List<String> batch : Lists.partition(approvedPubkeys, WRITE_BATCH_SIZE)) {
+			collection("accounts_loading").updateMany(s, in("pubkey", batch), new Document("$set", new DbEntryWrapper(approved).getDocument()));
+		}
+		for (List<String> batch : Lists.partition(contestedPubkeys, WRITE_BATCH_SIZE)) {
+			collection("accounts_loading").updateMany(s, in("pubkey", batch), new Document("$set", new DbEntryWrapper(contested).getDocument()));
+		}
+		System.err.println("Assigned " + approvedPubkeys.size() + " approved and " + contestedPubkeys.size() + " contested pubkeys");
+	}
+
+}
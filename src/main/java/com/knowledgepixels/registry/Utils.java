@@ -23,6 +23,7 @@ import com.github.jsonldjava.shaded.com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
 import com.mongodb.client.ClientSession;
 
+import io.vertx.ext.web.MIMEHeader;
 import io.vertx.ext.web.RoutingContext;
 import net.trustyuri.TrustyUriUtils;
 
@@ -39,6 +40,16 @@ public class Utils {
 		return mimeType;
 	}
 
+	/**
+	 * Returns the media type of the request body, i.e. the type and subtype of its Content-Type header in lower
+	 * case and without parameters such as the charset, or null if there is no such header.
+	 */
+	public static String getContentMediaType(RoutingContext context) {
+		MIMEHeader contentType = context.parsedHeaders().contentType();
+		if (contentType == null || contentType.component() == null || contentType.component().isEmpty()) return null;
+		return (contentType.component() + "/" + contentType.subComponent()).toLowerCase();
+	}
+
 	public static String urlEncode(Object o) {
 		try {
 			return URLEncoder.encode((o == null ? "" : o.toString()), "UTF-8");